@@ -0,0 +1,306 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.AbstractProject;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+import hudson.model.queue.CauseOfBlockage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drives {@link ThrottleQueueTaskDispatcher} against a synthetic Hudson: mocked
+ * projects and nodes, categories and running builds fed in through
+ * {@link ThrottleDecisionContext.Inputs} instead of a live instance.
+ *
+ * <ul>
+ * <li>{@code canTake}/{@code canRun}: a single check against a fresh snapshot, i.e. the
+ * cost of the first call of a queue pass.</li>
+ * <li>{@code maintenancePass}: what one {@code Queue.maintain()} asks: every queued item
+ * offered to every node with a free executor, one of the nodes that take it picked, and
+ * the item made pending there, so that the pending tracker confirms it (and reserves its
+ * slots) before the next item is offered.</li>
+ * </ul>
+ *
+ * Each pass ends by taking the items out of pending again, which releases their
+ * reservations, so every call or pass starts out from the same counts.
+ *
+ * Run with {@code java -jar target/benchmarks.jar -prof gc} to get allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThrottleDispatcherBenchmark {
+
+    /** "project", "category" (normal members) or "readerWriter" (every tenth member a writer). */
+    @Param({"project", "category", "readerWriter"})
+    public String scenario;
+
+    @Param({"8000"})
+    public int jobs;
+
+    @Param({"200"})
+    public int categories;
+
+    @Param({"40"})
+    public int membersPerCategory;
+
+    @Param({"200"})
+    public int nodes;
+
+    @Param({"4"})
+    public int executorsPerNode;
+
+    @Param({"500"})
+    public int queuedItems;
+
+    private SyntheticInputs inputs;
+    private BenchmarkDispatcher dispatcher;
+    private Node[] nodeList;
+    private AbstractProject<?,?>[] queued;
+    private ThrottleJobProperty[] queuedProperties;
+    /** Idle executors per node when a pass starts, and while it runs. */
+    private int[] idle;
+    private int[] free;
+    private int[] taking;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        inputs = new SyntheticInputs();
+        dispatcher = new BenchmarkDispatcher(inputs);
+
+        for (int c = 0; c < categories; c++) {
+            String name = "category-" + c;
+            inputs.categories.put(name, new ThrottleJobProperty.ThrottleCategory(name, 1, membersPerCategory / 2));
+        }
+
+        AbstractProject<?,?>[] projects = new AbstractProject<?,?>[jobs];
+        for (int j = 0; j < jobs; j++) {
+            projects[j] = project(j, property(j));
+        }
+
+        nodeList = new Node[nodes];
+        for (int n = 0; n < nodes; n++) {
+            Node node = mock(Node.class);
+            when(node.getNodeName()).thenReturn("node-" + n);
+            nodeList[n] = node;
+        }
+
+        // Keep about half of the executors busy.
+        idle = new int[nodes];
+        free = new int[nodes];
+        taking = new int[nodes];
+        for (int n = 0; n < nodes; n++) {
+            for (int e = 0; e < executorsPerNode / 2; e++) {
+                int j = (n * executorsPerNode + e * 7919) % jobs;
+                inputs.counters.started(new Object(), projects[j], "node-" + n);
+            }
+            idle[n] = executorsPerNode - executorsPerNode / 2;
+        }
+
+        queued = new AbstractProject<?,?>[queuedItems];
+        queuedProperties = new ThrottleJobProperty[queuedItems];
+        int stride = Math.max(1, jobs / Math.max(1, queuedItems));
+        for (int q = 0; q < queuedItems; q++) {
+            queued[q] = projects[(q * stride) % jobs];
+            queuedProperties[q] = queued[q].getProperty(ThrottleJobProperty.class);
+        }
+    }
+
+    @Benchmark
+    public CauseOfBlockage canTake() {
+        int i = cursor++;
+        dispatcher.context = ThrottleDecisionContext.create(inputs);
+        return dispatcher.canTake(nodeList[(i / queuedItems) % nodes], queued[i % queuedItems]);
+    }
+
+    @Benchmark
+    public CauseOfBlockage canRun() {
+        int i = cursor++ % queuedItems;
+        dispatcher.context = ThrottleDecisionContext.create(inputs);
+        return dispatcher.canRun(queued[i], queuedProperties[i]);
+    }
+
+    @Benchmark
+    public int maintenancePass() {
+        int admitted = 0;
+        dispatcher.context = null;
+        System.arraycopy(idle, 0, free, 0, nodes);
+        for (int q = 0; q < queuedItems; q++) {
+            int candidates = 0;
+            for (int n = 0; n < nodes; n++) {
+                if (free[n] > 0 && dispatcher.canTake(nodeList[n], queued[q]) == null) {
+                    taking[candidates++] = n;
+                }
+            }
+            if (candidates > 0) {
+                // The load balancer picks one of them and the item becomes pending there.
+                free[taking[q % candidates]]--;
+                inputs.pending.add(queued[q]);
+                admitted++;
+            }
+        }
+        inputs.pending.clear();
+        inputs.pendingTracker.sweep();
+        return admitted;
+    }
+
+    private ThrottleJobProperty property(int j) {
+        int categorized = categories * membersPerCategory;
+        if (scenario.equals("project") || j >= categorized) {
+            return new ThrottleJobProperty(1, 4, null, true, "project");
+        }
+        String type = "normal";
+        if (scenario.equals("readerWriter")) {
+            type = (j / categories) % 10 == 0 ? "writer" : "reader";
+        }
+        List<ThrottleJobProperty.CategoryConfiguration> cfgs = new ArrayList<ThrottleJobProperty.CategoryConfiguration>();
+        cfgs.add(new ThrottleJobProperty.CategoryConfiguration("category-" + (j % categories), type));
+        return new ThrottleJobProperty(0, 0, cfgs, true, "category");
+    }
+
+    private AbstractProject<?,?> project(int j, ThrottleJobProperty tjp) {
+        AbstractProject<?,?> p = mock(AbstractProject.class);
+        when(p.getName()).thenReturn("job-" + j);
+        when(p.getProperty(ThrottleJobProperty.class)).thenReturn(tjp);
+        if (tjp.getCategoryConfigurations() != null) {
+            for (ThrottleJobProperty.CategoryConfiguration cfg : tjp.getCategoryConfigurations()) {
+                List<AbstractProject<?,?>> members = inputs.members.get(cfg.getCategoryName());
+                if (members == null) {
+                    members = new ArrayList<AbstractProject<?,?>>();
+                    inputs.members.put(cfg.getCategoryName(), members);
+                }
+                members.add(p);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Shares a snapshot until pending tasks change, the way {@link ThrottleDecisionContext#get()}
+     * does within a queue pass.
+     */
+    static final class BenchmarkDispatcher extends ThrottleQueueTaskDispatcher {
+        private final SyntheticInputs inputs;
+        ThrottleDecisionContext context;
+        private long pendingVersion;
+
+        BenchmarkDispatcher(SyntheticInputs inputs) {
+            this.inputs = inputs;
+        }
+
+        @Override
+        ThrottleDecisionContext decisionContext() {
+            long version = inputs.pendingTracker.version();
+            if (context == null || version != pendingVersion) {
+                context = ThrottleDecisionContext.create(inputs);
+                pendingVersion = version;
+            }
+            return context;
+        }
+
+        @Override
+        ThrottleMetrics metrics() {
+            return context.metrics();
+        }
+    }
+
+    /**
+     * A queue that only knows which tasks are pending, for the pending tracker to confirm against.
+     */
+    static Queue queue(final Set<Task> pending) {
+        Queue queue = mock(Queue.class);
+        when(queue.isPending(any(Task.class))).thenAnswer(new Answer<Boolean>() {
+            public Boolean answer(InvocationOnMock invocation) {
+                return pending.contains(invocation.getArguments()[0]);
+            }
+        });
+        return queue;
+    }
+
+    static final class SyntheticInputs implements ThrottleDecisionContext.Inputs {
+        final Map<String, List<AbstractProject<?,?>>> members = new HashMap<String, List<AbstractProject<?,?>>>();
+        final Map<String, ThrottleJobProperty.ThrottleCategory> categories =
+            new HashMap<String, ThrottleJobProperty.ThrottleCategory>();
+        final Set<Task> pending = new HashSet<Task>();
+        final ThrottleCategoryIndex index = new ThrottleCategoryIndex(null);
+        final ThrottleMetrics metrics = new ThrottleMetrics();
+        final ThrottleFairShare fairShare = new ThrottleFairShare();
+        final ThrottleRunCounters counters = new ThrottleRunCounters(index, fairShare, null);
+        final ThrottleReservations reservations = new ThrottleReservations(counters, false);
+        final ThrottlePendingTracker pendingTracker = new ThrottlePendingTracker(reservations, queue(pending));
+        final ThrottleRateLimiter rateLimiter = new ThrottleRateLimiter();
+        final ThrottleDurations durations = new ThrottleDurations();
+
+        public List<AbstractProject<?,?>> getCategoryProjects(String category) {
+            List<AbstractProject<?,?>> l = members.get(category);
+            return l == null ? Collections.<AbstractProject<?,?>>emptyList() : l;
+        }
+
+        public Map<String, ThrottleJobProperty.ThrottleCategory> getCategoryTable() {
+            return categories;
+        }
+
+        public boolean isPending(Task task) {
+            return pendingTracker.isPending(task);
+        }
+
+        public ThrottleRunCounters getCounters() {
+            return counters;
+        }
+
+        public List<Queue.Item> getQueuedItems() {
+            return Collections.emptyList();
+        }
+
+        public ThrottleMetrics getMetrics() {
+            return metrics;
+        }
+
+        public ThrottleFairShare getFairShare() {
+            return fairShare;
+        }
+
+        public ThrottlePendingTracker getPendingTracker() {
+            return pendingTracker;
+        }
+
+        public ThrottleRateLimiter getRateLimiter() {
+            return rateLimiter;
+        }
+
+        public ThrottleDurations getDurations() {
+            return durations;
+        }
+    }
+}
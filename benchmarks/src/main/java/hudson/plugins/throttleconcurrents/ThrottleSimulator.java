@@ -0,0 +1,533 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.AbstractProject;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Replays a queue trace recorded by {@link ThrottleTraceRecorder} against a candidate
+ * throttle configuration (in the format of {@link ThrottleConfigJson}), with the
+ * dispatcher deciding what starts where, and reports throughput, queue waits and
+ * category utilization next to what the trace itself recorded.
+ *
+ * Time is simulated: every build keeps its recorded duration, and the queue is
+ * re-evaluated whenever a build arrives or finishes. Rules that read the wall clock
+ * (start rate limits, fairness, writer preference), adaptive limits (which follow
+ * live node monitor data) and per node limits for a label expression (which needs a
+ * running Hudson to parse) are left out, with a warning.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar hudson.plugins.throttleconcurrents.ThrottleSimulator trace.jsonl config.json
+ * </pre>
+ */
+public final class ThrottleSimulator {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ThrottleSimulator <trace.jsonl> <config.json>");
+            System.exit(2);
+        }
+        Trace trace = Trace.read(new File(args[0]));
+        JSONObject config = JSONObject.fromObject(readFully(new File(args[1])));
+        ThrottleSimulator simulator = new ThrottleSimulator(trace, config, System.err);
+        simulator.run().print(System.out);
+    }
+
+    private final Trace trace;
+    private final SimulatedInputs inputs = new SimulatedInputs();
+    private final SimulatedDispatcher dispatcher = new SimulatedDispatcher();
+    private final Map<String, AbstractProject<?,?>> projects = new HashMap<String, AbstractProject<?,?>>();
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+
+    ThrottleSimulator(Trace trace, JSONObject config, PrintStream warnings) {
+        this.trace = trace;
+
+        JSONArray categories = config.optJSONArray("categories");
+        if (categories != null) {
+            for (int i = 0; i < categories.size(); i++) {
+                ThrottleJobProperty.ThrottleCategory c = simulated(ThrottleConfigJson.toCategory(categories.getJSONObject(i)),
+                                                                   warnings);
+                inputs.categories.put(c.getCategoryName(), c);
+            }
+        }
+        Map<String, List<String>> ancestors = new HashMap<String, List<String>>();
+        for (String name : inputs.categories.keySet()) {
+            ancestors.put(name, ThrottleCategoryIndex.ancestorsOf(name, inputs.categories));
+        }
+        inputs.index.setAncestors(ancestors);
+
+        JSONObject jobs = config.optJSONObject("jobs");
+        for (Build b : trace.builds) {
+            if (!projects.containsKey(b.job)) {
+                JSONObject o = jobs == null ? null : jobs.optJSONObject(b.job);
+                projects.put(b.job, project(b.job, o == null ? null : ThrottleConfigJson.toProperty(o)));
+            }
+        }
+
+        for (Map.Entry<String, NodeDef> e : trace.nodes.entrySet()) {
+            Node node = mock(Node.class);
+            when(node.getNodeName()).thenReturn(e.getKey());
+            when(node.getNumExecutors()).thenReturn(e.getValue().executors);
+            when(node.getLabelString()).thenReturn(e.getValue().labels);
+            nodes.put(e.getKey(), node);
+        }
+    }
+
+    /**
+     * The category without the rules that can't be simulated.
+     */
+    private static ThrottleJobProperty.ThrottleCategory simulated(ThrottleJobProperty.ThrottleCategory c, PrintStream warnings) {
+        String name = c.getCategoryName();
+        if (c.getRateLimitStarts().intValue() > 0) {
+            warnings.println("Ignoring the start rate limit of category " + name);
+        }
+        if (!c.getFairness().equals("none") || c.getWriterPreference()) {
+            warnings.println("Ignoring fairness and writer preference of category " + name);
+        }
+        if (c.getAdaptiveLimit() != null) {
+            warnings.println("Ignoring the adaptive per node limit of category " + name);
+        }
+        List<ThrottleJobProperty.NodeLimit> nodeLimits = new ArrayList<ThrottleJobProperty.NodeLimit>();
+        for (ThrottleJobProperty.NodeLimit nodeLimit : c.getNodeLimits()) {
+            if (nodeLimit.getLabelExpression() == null) {
+                nodeLimits.add(nodeLimit);
+            }
+            else {
+                warnings.println("Ignoring the per node limit of category " + name + " for " + nodeLimit.getLabelExpression());
+            }
+        }
+        return new ThrottleJobProperty.ThrottleCategory(name, c.getMaxConcurrentPerNode(), c.getMaxConcurrentTotal(),
+                                                        null, false, null, nodeLimits, null, null, null,
+                                                        c.getParentCategoryName(), null);
+    }
+
+    private AbstractProject<?,?> project(String name, ThrottleJobProperty tjp) {
+        AbstractProject<?,?> p = mock(AbstractProject.class);
+        when(p.getName()).thenReturn(name);
+        when(p.getFullName()).thenReturn(name);
+        when(p.getDisplayName()).thenReturn(name);
+        when(p.getProperty(ThrottleJobProperty.class)).thenReturn(tjp);
+        if (tjp != null && tjp.getCategoryConfigurations() != null) {
+            for (ThrottleJobProperty.CategoryConfiguration cfg : tjp.getCategoryConfigurations()) {
+                List<AbstractProject<?,?>> members = inputs.members.get(cfg.getCategoryName());
+                if (members == null) {
+                    members = new ArrayList<AbstractProject<?,?>>();
+                    inputs.members.put(cfg.getCategoryName(), members);
+                }
+                members.add(p);
+            }
+        }
+        return p;
+    }
+
+    Report run() {
+        Report report = new Report();
+        for (String category : inputs.categories.keySet()) {
+            report.categories.put(category, new Utilization(inputs.categories.get(category).getMaxConcurrentTotal().intValue()));
+        }
+
+        Map<String, Integer> free = new HashMap<String, Integer>();
+        for (Node node : nodes.values()) {
+            free.put(node.getNodeName(), node.getNumExecutors());
+        }
+        PriorityQueue<Build> running = new PriorityQueue<Build>(64, new Comparator<Build>() {
+            public int compare(Build a, Build b) {
+                return a.simulatedFinish < b.simulatedFinish ? -1 : a.simulatedFinish > b.simulatedFinish ? 1 : 0;
+            }
+        });
+        List<Build> waiting = new LinkedList<Build>();
+        List<Build> arrivals = trace.builds;
+        int next = 0;
+        long now = arrivals.isEmpty() ? 0 : arrivals.get(0).enqueuedAt;
+        report.from = now;
+
+        while (next < arrivals.size() || !running.isEmpty()) {
+            long t = Long.MAX_VALUE;
+            if (next < arrivals.size()) {
+                t = arrivals.get(next).enqueuedAt;
+            }
+            if (!running.isEmpty()) {
+                t = Math.min(t, running.peek().simulatedFinish);
+            }
+            for (Map.Entry<String, Utilization> e : report.categories.entrySet()) {
+                e.getValue().add(inputs.counters.categoryRunning(e.getKey()), t - now);
+            }
+            now = t;
+
+            while (!running.isEmpty() && running.peek().simulatedFinish <= now) {
+                Build b = running.poll();
+                inputs.counters.completed(b);
+                free.put(b.simulatedNode, free.get(b.simulatedNode) + 1);
+                report.completed++;
+            }
+            while (next < arrivals.size() && arrivals.get(next).enqueuedAt <= now) {
+                waiting.add(arrivals.get(next++));
+            }
+
+            // One queue pass: each waiting build, oldest first, goes to the first node that takes it.
+            dispatcher.context = ThrottleDecisionContext.create(inputs);
+            Set<String> blocked = new HashSet<String>();
+            for (Iterator<Build> it = waiting.iterator(); it.hasNext(); ) {
+                Build b = it.next();
+                if (blocked.contains(b.job)) {
+                    continue;
+                }
+                AbstractProject<?,?> project = projects.get(b.job);
+                ThrottleJobProperty tjp = project.getProperty(ThrottleJobProperty.class);
+                if (tjp != null && tjp.getThrottleEnabled() && dispatcher.canRun(project, tjp) != null) {
+                    blocked.add(b.job);
+                    continue;
+                }
+                Node taken = null;
+                for (Node node : candidates(b)) {
+                    if (free.get(node.getNodeName()) > 0 && dispatcher.canTake(node, project) == null) {
+                        taken = node;
+                        break;
+                    }
+                }
+                if (taken == null) {
+                    blocked.add(b.job);
+                    continue;
+                }
+                it.remove();
+                b.simulatedNode = taken.getNodeName();
+                b.simulatedFinish = now + b.duration();
+                free.put(b.simulatedNode, free.get(b.simulatedNode) - 1);
+                inputs.pendingTracker.started(project);
+                inputs.counters.started(b, project, b.simulatedNode);
+                running.add(b);
+                report.simulatedWaits.add(now - b.enqueuedAt);
+                report.recordedWaits.add(b.startedAt - b.enqueuedAt);
+                // Everything the snapshot counted may have changed.
+                dispatcher.context = ThrottleDecisionContext.create(inputs);
+                blocked.clear();
+            }
+        }
+        report.to = now;
+        report.stuck = waiting.size();
+        return report;
+    }
+
+    private Iterable<Node> candidates(Build b) {
+        if (b.nodes == null) {
+            return nodes.values();
+        }
+        List<Node> l = new ArrayList<Node>(b.nodes.size());
+        for (String name : b.nodes) {
+            Node node = nodes.get(name);
+            if (node != null) {
+                l.add(node);
+            }
+        }
+        return l;
+    }
+
+    private static String readFully(File f) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+        } finally {
+            r.close();
+        }
+        return sb.toString();
+    }
+
+    static final class NodeDef {
+        int executors = 1;
+        String labels = "";
+    }
+
+    static final class Build {
+        final String job;
+        final long enqueuedAt;
+        /** Nodes the build may run on, or null for any. */
+        final List<String> nodes;
+        long startedAt = -1;
+        long finishedAt = -1;
+        String node;
+
+        String simulatedNode;
+        long simulatedFinish;
+
+        Build(String job, long enqueuedAt, List<String> nodes) {
+            this.job = job;
+            this.enqueuedAt = enqueuedAt;
+            this.nodes = nodes;
+        }
+
+        long duration() {
+            return finishedAt - startedAt;
+        }
+    }
+
+    /**
+     * The builds of a trace that were enqueued, started and finished within it, in
+     * enqueue order, and the last known definition of each node.
+     */
+    static final class Trace {
+        final Map<String, NodeDef> nodes = new LinkedHashMap<String, NodeDef>();
+        final List<Build> builds = new ArrayList<Build>();
+        int incomplete;
+
+        static Trace read(File file) throws IOException {
+            Trace trace = new Trace();
+            Map<String, LinkedList<Build>> queued = new HashMap<String, LinkedList<Build>>();
+            Map<String, LinkedList<Build>> started = new HashMap<String, LinkedList<Build>>();
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.trim().length() == 0) {
+                        continue;
+                    }
+                    trace.add(JSONObject.fromObject(line), queued, started);
+                }
+            } finally {
+                r.close();
+            }
+            for (LinkedList<Build> l : queued.values()) {
+                trace.incomplete += l.size();
+            }
+            for (LinkedList<Build> l : started.values()) {
+                trace.incomplete += l.size();
+            }
+            Collections.sort(trace.builds, new Comparator<Build>() {
+                public int compare(Build a, Build b) {
+                    return a.enqueuedAt < b.enqueuedAt ? -1 : a.enqueuedAt > b.enqueuedAt ? 1 : 0;
+                }
+            });
+            return trace;
+        }
+
+        private void add(JSONObject e, Map<String, LinkedList<Build>> queued, Map<String, LinkedList<Build>> started) {
+            String event = e.optString("event");
+            long t = e.optLong("t");
+            if (event.equals("node")) {
+                NodeDef def = new NodeDef();
+                def.executors = e.optInt("executors", 1);
+                def.labels = e.optString("labels", "");
+                nodes.put(e.getString("node"), def);
+                return;
+            }
+            String job = e.getString("job");
+            if (event.equals("enqueue")) {
+                List<String> candidates = null;
+                JSONArray a = e.optJSONArray("nodes");
+                if (a != null) {
+                    candidates = new ArrayList<String>();
+                    for (int i = 0; i < a.size(); i++) {
+                        candidates.add(a.getString(i));
+                    }
+                }
+                listOf(queued, job).add(new Build(job, t, candidates));
+            }
+            else if (event.equals("start")) {
+                String node = e.optString("node", "");
+                LinkedList<Build> l = listOf(queued, job);
+                // Started before the recording did: count it as not having waited.
+                Build b = l.isEmpty() ? new Build(job, t, null) : l.removeFirst();
+                b.startedAt = t;
+                b.node = node;
+                if (!nodes.containsKey(node)) {
+                    nodes.put(node, new NodeDef());
+                }
+                listOf(started, job).add(b);
+            }
+            else if (event.equals("finish")) {
+                String node = e.optString("node", "");
+                for (Iterator<Build> it = listOf(started, job).iterator(); it.hasNext(); ) {
+                    Build b = it.next();
+                    if (b.node.equals(node)) {
+                        it.remove();
+                        b.finishedAt = t;
+                        builds.add(b);
+                        break;
+                    }
+                }
+            }
+        }
+
+        private static LinkedList<Build> listOf(Map<String, LinkedList<Build>> m, String job) {
+            LinkedList<Build> l = m.get(job);
+            if (l == null) {
+                l = new LinkedList<Build>();
+                m.put(job, l);
+            }
+            return l;
+        }
+    }
+
+    static final class Utilization {
+        final int limit;
+        long slotMillis;
+        long millis;
+        int peak;
+
+        Utilization(int limit) {
+            this.limit = limit;
+        }
+
+        void add(int running, long millis) {
+            slotMillis += running * millis;
+            this.millis += millis;
+            peak = Math.max(peak, running);
+        }
+
+        double average() {
+            return millis == 0 ? 0 : (double) slotMillis / millis;
+        }
+    }
+
+    static final class Report {
+        long from;
+        long to;
+        int completed;
+        int stuck;
+        final List<Long> simulatedWaits = new ArrayList<Long>();
+        final List<Long> recordedWaits = new ArrayList<Long>();
+        final Map<String, Utilization> categories = new TreeMap<String, Utilization>();
+
+        void print(PrintStream out) {
+            double hours = Math.max(1, to - from) / 3600000.0;
+            out.printf("Builds: %d completed over %.1f hours, %.1f per hour%n", completed, hours, completed / hours);
+            if (stuck > 0) {
+                out.printf("Builds that never got to start: %d%n", stuck);
+            }
+            out.println("Queue wait (seconds)   p50      p90      p99      max");
+            printWaits(out, "  simulated", simulatedWaits);
+            printWaits(out, "  recorded", recordedWaits);
+            out.println("Category utilization   average  peak     limit");
+            for (Map.Entry<String, Utilization> e : categories.entrySet()) {
+                Utilization u = e.getValue();
+                out.printf("  %-20s %-8.2f %-8d %s%n", e.getKey(), u.average(), u.peak,
+                           u.limit > 0 ? String.format("%d (%.0f%%)", u.limit, 100 * u.average() / u.limit) : "none");
+            }
+        }
+
+        private static void printWaits(PrintStream out, String title, List<Long> waits) {
+            long[] w = new long[waits.size()];
+            for (int i = 0; i < w.length; i++) {
+                w[i] = waits.get(i);
+            }
+            Arrays.sort(w);
+            out.printf("%-22s %-8.1f %-8.1f %-8.1f %-8.1f%n", title,
+                       percentile(w, 0.5), percentile(w, 0.9), percentile(w, 0.99), percentile(w, 1));
+        }
+
+        private static double percentile(long[] sorted, double q) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int i = (int) Math.ceil(q * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1000.0;
+        }
+    }
+
+    static final class SimulatedDispatcher extends ThrottleQueueTaskDispatcher {
+        ThrottleDecisionContext context;
+
+        @Override
+        ThrottleDecisionContext decisionContext() {
+            return context;
+        }
+
+        @Override
+        ThrottleMetrics metrics() {
+            return context.metrics();
+        }
+    }
+
+    /**
+     * Nothing is ever pending: a build the dispatcher lets through starts right away.
+     * Keeps its own category index, counters, metrics, fair share, rate limiter and
+     * durations, none of which tell the live snapshots about their changes, so a
+     * simulation run inside Hudson leaves the live state alone.
+     */
+    static final class SimulatedInputs implements ThrottleDecisionContext.Inputs {
+        final Map<String, List<AbstractProject<?,?>>> members = new HashMap<String, List<AbstractProject<?,?>>>();
+        final Map<String, ThrottleJobProperty.ThrottleCategory> categories =
+            new HashMap<String, ThrottleJobProperty.ThrottleCategory>();
+        final ThrottleCategoryIndex index = new ThrottleCategoryIndex(null);
+        final ThrottleMetrics metrics = new ThrottleMetrics();
+        final ThrottleFairShare fairShare = new ThrottleFairShare();
+        final ThrottleRunCounters counters = new ThrottleRunCounters(index, fairShare, null);
+        /** Never has anything pending to confirm. */
+        final ThrottlePendingTracker pendingTracker =
+            new ThrottlePendingTracker(new ThrottleReservations(counters, false), mock(Queue.class));
+        final ThrottleRateLimiter rateLimiter = new ThrottleRateLimiter();
+        final ThrottleDurations durations = new ThrottleDurations();
+
+        public List<AbstractProject<?,?>> getCategoryProjects(String category) {
+            List<AbstractProject<?,?>> l = members.get(category);
+            return l == null ? Collections.<AbstractProject<?,?>>emptyList() : l;
+        }
+
+        public Map<String, ThrottleJobProperty.ThrottleCategory> getCategoryTable() {
+            return categories;
+        }
+
+        public boolean isPending(Task task) {
+            return false;
+        }
+
+        public ThrottleRunCounters getCounters() {
+            return counters;
+        }
+
+        public List<Queue.Item> getQueuedItems() {
+            return Collections.emptyList();
+        }
+
+        public ThrottleMetrics getMetrics() {
+            return metrics;
+        }
+
+        public ThrottleFairShare getFairShare() {
+            return fairShare;
+        }
+
+        public ThrottlePendingTracker getPendingTracker() {
+            return pendingTracker;
+        }
+
+        public ThrottleRateLimiter getRateLimiter() {
+            return rateLimiter;
+        }
+
+        public ThrottleDurations getDurations() {
+            return durations;
+        }
+    }
+}
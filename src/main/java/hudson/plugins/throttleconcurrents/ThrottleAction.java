@@ -0,0 +1,469 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Queue;
+import hudson.model.RootAction;
+import hudson.security.AccessControlled;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Throttling status page at {@code /throttle}, with the dispatcher metrics also
+ * available as JSON ({@code /throttle/metrics}) and in the Prometheus text format
+ * ({@code /throttle/prometheus}).
+ *
+ * Category state is available read-only through the remote API
+ * ({@code /throttle/api/json}), and as a long poll ({@code /throttle/stream?version=N}),
+ * which answers once the state moves past version N, at most about once a second per
+ * client. Queued builds are only listed for the jobs the user may read.
+ *
+ * Administrators can export the whole throttle configuration as JSON
+ * ({@code /throttle/export}) and apply such a document in bulk ({@code /throttle/apply}).
+ */
+@Extension
+@ExportedBean
+public class ThrottleAction implements RootAction {
+    private static final long STREAM_TIMEOUT_MILLIS =
+        Long.getLong(ThrottleAction.class.getName() + ".streamTimeoutMillis", 30 * 1000L);
+    /** Least time a long poll takes to answer a change, so bursts of changes go out as one. */
+    private static final long STREAM_MIN_INTERVAL_MILLIS =
+        Long.getLong(ThrottleAction.class.getName() + ".streamMinIntervalMillis", 1000L);
+    /** Long polls allowed to wait at once; more are turned away with a 503. */
+    private static final int STREAM_MAX_WAITERS =
+        Integer.getInteger(ThrottleAction.class.getName() + ".streamMaxWaiters", 16);
+    private static final AtomicInteger STREAM_WAITERS = new AtomicInteger();
+
+    public String getIconFileName() {
+        return "graph.gif";
+    }
+
+    public String getDisplayName() {
+        return "Throttle Concurrent Builds";
+    }
+
+    public String getUrlName() {
+        return "throttle";
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * Changes whenever throttle state may have changed.
+     */
+    @Exported
+    public long getVersion() {
+        return ThrottleDecisionContext.generation();
+    }
+
+    public ThrottleMetrics getMetrics() {
+        return ThrottleMetrics.get();
+    }
+
+    public List<ThrottleMetrics.Cause> getCauses() {
+        return Arrays.asList(ThrottleMetrics.Cause.values());
+    }
+
+    /**
+     * Running builds against the limits of every globally configured category.
+     */
+    @Exported(name="categories")
+    public List<CategoryUtilization> getCategoryUtilization() {
+        List<CategoryUtilization> l = new ArrayList<CategoryUtilization>();
+        ThrottleJobProperty.DescriptorImpl descriptor =
+            Hudson.getInstance().getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class);
+        Map<String, ThrottleMetrics.CategoryStats> stats = getMetrics().getCategories();
+        for (ThrottleJobProperty.ThrottleCategory category : descriptor.getCategories()) {
+            String name = category.getCategoryName();
+            l.add(new CategoryUtilization(category, name == null ? null : stats.get(name)));
+        }
+        return l;
+    }
+
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        ThrottleMetrics metrics = getMetrics();
+        JSONObject json = new JSONObject();
+        json.put("canTake", toJSON(metrics.getCanTake()));
+        json.put("canRun", toJSON(metrics.getCanRun()));
+
+        JSONObject blocked = new JSONObject();
+        for (ThrottleMetrics.Cause cause : ThrottleMetrics.Cause.values()) {
+            blocked.put(cause.getLabel(), metrics.getBlocked(cause));
+        }
+        json.put("blocked", blocked);
+
+        JSONArray categories = new JSONArray();
+        for (CategoryUtilization u : getCategoryUtilization()) {
+            JSONObject c = new JSONObject();
+            c.put("name", u.getName());
+            c.put("running", u.getRunning());
+            c.put("maxConcurrentTotal", u.getMaxConcurrentTotal());
+            c.put("maxConcurrentPerNode", u.getMaxConcurrentPerNode());
+            c.put("admitted", u.getAdmitted());
+            c.put("blockedMillis", u.getBlockedMillis());
+            JSONObject catBlocked = new JSONObject();
+            for (ThrottleMetrics.Cause cause : ThrottleMetrics.Cause.values()) {
+                catBlocked.put(cause.getLabel(), u.getBlocked(cause));
+            }
+            c.put("blocked", catBlocked);
+            categories.add(c);
+        }
+        json.put("categories", categories);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(json.toString());
+    }
+
+    /**
+     * Long poll: waits until the state version differs from {@code version}, or for at
+     * most {@link #STREAM_TIMEOUT_MILLIS}, then sends the current version and categories.
+     * A change is only answered {@link #STREAM_MIN_INTERVAL_MILLIS} after the request came
+     * in, so a client following the stream gets the changes made meanwhile in one answer
+     * rather than one answer per change. Without a version it answers right away.
+     */
+    public void doStream(StaplerRequest req, StaplerResponse rsp, @QueryParameter String version)
+            throws IOException, InterruptedException {
+        long since;
+        try {
+            since = Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            since = -1;
+        }
+        long current;
+        if (since < 0) {
+            current = ThrottleDecisionContext.generation();
+        } else {
+            if (STREAM_WAITERS.incrementAndGet() > STREAM_MAX_WAITERS) {
+                STREAM_WAITERS.decrementAndGet();
+                rsp.setHeader("Retry-After", Long.toString(Math.max(1, STREAM_TIMEOUT_MILLIS / 1000)));
+                rsp.sendError(StaplerResponse.SC_SERVICE_UNAVAILABLE, "Too many clients following the stream");
+                return;
+            }
+            try {
+                long started = System.currentTimeMillis();
+                current = ThrottleDecisionContext.awaitChange(since, STREAM_TIMEOUT_MILLIS);
+                long settle = started + STREAM_MIN_INTERVAL_MILLIS - System.currentTimeMillis();
+                if (current != since && settle > 0) {
+                    Thread.sleep(settle);
+                    current = ThrottleDecisionContext.generation();
+                }
+            } finally {
+                STREAM_WAITERS.decrementAndGet();
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("version", current);
+        JSONArray categories = new JSONArray();
+        for (CategoryUtilization u : getCategoryUtilization()) {
+            JSONObject c = new JSONObject();
+            c.put("name", u.getName());
+            c.put("running", u.getRunning());
+            JSONObject perNode = new JSONObject();
+            for (NodeOccupancy o : u.getRunningPerNode()) {
+                perNode.put(o.getNode(), o.getRunning());
+            }
+            c.put("runningPerNode", perNode);
+            c.put("maxConcurrentTotal", u.getMaxConcurrentTotal());
+            c.put("maxConcurrentPerNode", u.getMaxConcurrentPerNode());
+            c.put("nextSlotMillis", u.getNextSlotMillis());
+            JSONArray queued = new JSONArray();
+            for (QueuedMember m : u.getQueued()) {
+                JSONObject q = new JSONObject();
+                q.put("task", m.getTask());
+                q.put("inQueueSince", m.getInQueueSince());
+                q.put("why", m.getWhy());
+                queued.add(q);
+            }
+            c.put("queued", queued);
+            categories.add(c);
+        }
+        json.put("categories", categories);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache");
+        rsp.getWriter().print(json.toString());
+    }
+
+    /**
+     * The global categories and every project's throttle settings as JSON, in the
+     * format {@link #doApply} takes.
+     */
+    public void doExport(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(ThrottleConfigJson.export(Hudson.getInstance()).toString(2));
+    }
+
+    /**
+     * Applies a posted JSON document in the format of {@link #doExport}, saving only the
+     * categories and projects that change, and answers with what changed. With
+     * {@code dryRun=true} it only reports what would change. A document that doesn't hold
+     * together is rejected as a whole; if saving fails part way, the answer is a 500
+     * that lists what was saved.
+     */
+    public void doApply(StaplerRequest req, StaplerResponse rsp, @QueryParameter boolean dryRun) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        if (!"POST".equals(req.getMethod())) {
+            rsp.sendError(StaplerResponse.SC_METHOD_NOT_ALLOWED, "POST required");
+            return;
+        }
+        StringBuilder body = new StringBuilder();
+        BufferedReader r = req.getReader();
+        String line;
+        while ((line = r.readLine()) != null) {
+            body.append(line).append('\n');
+        }
+        JSONObject document;
+        try {
+            document = JSONObject.fromObject(body.toString());
+        } catch (JSONException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Not a JSON object: " + e.getMessage());
+            return;
+        }
+        JSONObject report;
+        try {
+            report = ThrottleConfigJson.apply(Hudson.getInstance(), document, dryRun);
+        } catch (JSONException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (report.has("error")) {
+            rsp.setStatus(StaplerResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(report.toString(2));
+    }
+
+    public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        ThrottleMetrics metrics = getMetrics();
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+
+        writeHistogram(w, "throttle_can_take_duration_seconds", metrics.getCanTake());
+        writeHistogram(w, "throttle_can_run_duration_seconds", metrics.getCanRun());
+
+        w.println("# TYPE throttle_blocked_total counter");
+        for (ThrottleMetrics.Cause cause : ThrottleMetrics.Cause.values()) {
+            w.println("throttle_blocked_total{cause=\"" + cause.getLabel() + "\"} " + metrics.getBlocked(cause));
+        }
+
+        List<CategoryUtilization> categories = getCategoryUtilization();
+        w.println("# TYPE throttle_category_running gauge");
+        for (CategoryUtilization u : categories) {
+            w.println("throttle_category_running{category=\"" + escape(u.getName()) + "\"} " + u.getRunning());
+        }
+        w.println("# TYPE throttle_category_limit gauge");
+        for (CategoryUtilization u : categories) {
+            w.println("throttle_category_limit{category=\"" + escape(u.getName()) + "\",scope=\"total\"} " + u.getMaxConcurrentTotal());
+            w.println("throttle_category_limit{category=\"" + escape(u.getName()) + "\",scope=\"node\"} " + u.getMaxConcurrentPerNode());
+        }
+        w.println("# TYPE throttle_category_blocked_total counter");
+        for (CategoryUtilization u : categories) {
+            for (ThrottleMetrics.Cause cause : ThrottleMetrics.Cause.values()) {
+                w.println("throttle_category_blocked_total{category=\"" + escape(u.getName())
+                          + "\",cause=\"" + cause.getLabel() + "\"} " + u.getBlocked(cause));
+            }
+        }
+        w.println("# TYPE throttle_category_admitted_total counter");
+        for (CategoryUtilization u : categories) {
+            w.println("throttle_category_admitted_total{category=\"" + escape(u.getName()) + "\"} " + u.getAdmitted());
+        }
+        w.println("# TYPE throttle_category_blocked_seconds_total counter");
+        for (CategoryUtilization u : categories) {
+            w.println("throttle_category_blocked_seconds_total{category=\"" + escape(u.getName()) + "\"} "
+                      + (u.getBlockedMillis() / 1000.0));
+        }
+    }
+
+    private static JSONObject toJSON(ThrottleMetrics.Histogram h) {
+        JSONObject json = new JSONObject();
+        json.put("count", h.getCount());
+        json.put("sumNanos", h.getSumNanos());
+        json.put("p50Micros", h.getQuantileMicros(0.5));
+        json.put("p99Micros", h.getQuantileMicros(0.99));
+        JSONObject buckets = new JSONObject();
+        for (int i = 0; i < ThrottleMetrics.Histogram.BUCKETS; i++) {
+            buckets.put("le" + ThrottleMetrics.Histogram.getBucketBoundMicros(i) + "us", h.getBucket(i));
+        }
+        buckets.put("overflow", h.getBucket(ThrottleMetrics.Histogram.BUCKETS));
+        json.put("buckets", buckets);
+        return json;
+    }
+
+    private static void writeHistogram(PrintWriter w, String name, ThrottleMetrics.Histogram h) {
+        w.println("# TYPE " + name + " histogram");
+        long cumulative = 0;
+        for (int i = 0; i < ThrottleMetrics.Histogram.BUCKETS; i++) {
+            cumulative += h.getBucket(i);
+            double le = ThrottleMetrics.Histogram.getBucketBoundMicros(i) / 1000000.0;
+            w.println(name + "_bucket{le=\"" + le + "\"} " + cumulative);
+        }
+        w.println(name + "_bucket{le=\"+Inf\"} " + h.getCount());
+        w.println(name + "_sum " + (h.getSumNanos() / 1000000000.0));
+        w.println(name + "_count " + h.getCount());
+    }
+
+    private static String escape(String label) {
+        if (label == null) {
+            return "";
+        }
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @ExportedBean(defaultVisibility=2)
+    public static final class CategoryUtilization {
+        private final ThrottleJobProperty.ThrottleCategory category;
+        private final ThrottleMetrics.CategoryStats stats;
+
+        CategoryUtilization(ThrottleJobProperty.ThrottleCategory category, ThrottleMetrics.CategoryStats stats) {
+            this.category = category;
+            this.stats = stats;
+        }
+
+        @Exported
+        public String getName() {
+            return category.getCategoryName();
+        }
+
+        @Exported
+        public int getRunning() {
+            return ThrottleRunCounters.get().categoryRunning(category.getCategoryName());
+        }
+
+        @Exported
+        public List<NodeOccupancy> getRunningPerNode() {
+            List<NodeOccupancy> l = new ArrayList<NodeOccupancy>();
+            for (Map.Entry<String, Integer> e : ThrottleRunCounters.get().categoryRunningByNode(category.getCategoryName()).entrySet()) {
+                l.add(new NodeOccupancy(e.getKey(), e.getValue()));
+            }
+            return l;
+        }
+
+        @Exported
+        public int getMaxConcurrentTotal() {
+            return category.getMaxConcurrentTotal().intValue();
+        }
+
+        @Exported
+        public int getMaxConcurrentPerNode() {
+            return category.getMaxConcurrentPerNode().intValue();
+        }
+
+        /**
+         * Estimated milliseconds until the category has room for another build under
+         * its total limit: 0 if it has room now, -1 if there is no telling.
+         */
+        @Exported
+        public long getNextSlotMillis() {
+            int max = getMaxConcurrentTotal();
+            int running = getRunning();
+            if (max <= 0 || running < max) {
+                return 0;
+            }
+            return ThrottleDurations.get().estimateWait(category.getCategoryName(), null, null, running - max + 1);
+        }
+
+        /**
+         * Queued builds of the category's members that the current user may see, with
+         * why they are waiting.
+         */
+        @Exported
+        public List<QueuedMember> getQueued() {
+            List<QueuedMember> l = new ArrayList<QueuedMember>();
+            String name = category.getCategoryName();
+            if (name != null) {
+                for (Queue.Item item : ThrottleDecisionContext.get().getQueuedItems(name)) {
+                    if (item.task instanceof AccessControlled
+                        && ((AccessControlled) item.task).hasPermission(Item.READ)) {
+                        l.add(new QueuedMember(item));
+                    }
+                }
+            }
+            return l;
+        }
+
+        @Exported
+        public long getAdmitted() {
+            return stats == null ? 0 : stats.getAdmitted();
+        }
+
+        @Exported
+        public long getBlockedMillis() {
+            return stats == null ? 0 : stats.getBlockedMillis();
+        }
+
+        public long getBlocked(ThrottleMetrics.Cause cause) {
+            return stats == null ? 0 : stats.getBlocked(cause);
+        }
+    }
+
+    @ExportedBean(defaultVisibility=3)
+    public static final class NodeOccupancy {
+        private final String node;
+        private final int running;
+
+        NodeOccupancy(String node, int running) {
+            this.node = node;
+            this.running = running;
+        }
+
+        /** The node name; empty for the master. */
+        @Exported
+        public String getNode() {
+            return node;
+        }
+
+        @Exported
+        public int getRunning() {
+            return running;
+        }
+    }
+
+    @ExportedBean(defaultVisibility=3)
+    public static final class QueuedMember {
+        private final Queue.Item item;
+
+        QueuedMember(Queue.Item item) {
+            this.item = item;
+        }
+
+        @Exported
+        public String getTask() {
+            return item.task.getFullDisplayName();
+        }
+
+        @Exported
+        public long getInQueueSince() {
+            return item.getInQueueSince();
+        }
+
+        @Exported
+        public String getWhy() {
+            return item.getWhy();
+        }
+    }
+}
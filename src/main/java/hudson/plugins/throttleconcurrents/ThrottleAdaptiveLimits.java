@@ -0,0 +1,166 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.node_monitors.DiskSpaceMonitor;
+import hudson.node_monitors.DiskSpaceMonitorDescriptor;
+import hudson.node_monitors.ResponseTimeMonitor;
+import hudson.node_monitors.SwapSpaceMonitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jvnet.hudson.MemoryUsage;
+
+/**
+ * Effective per node limits of the categories with an {@link ThrottleJobProperty.AdaptiveLimit},
+ * adjusted AIMD style from the data Hudson's node monitors already collect: halved
+ * (down to the minimum) while a node is short of memory or disk space or slow to
+ * respond, raised by one (up to the maximum) while it is healthy and the category
+ * uses up its limit there.
+ *
+ * Node monitors don't report load averages, so those aren't taken into account. A node
+ * starts out at its ceiling (see {@link ThrottleJobProperty.AdaptiveLimit#ceiling}), which
+ * is the category's static per node limit there if it has one.
+ */
+public final class ThrottleAdaptiveLimits {
+    private static final ThrottleAdaptiveLimits INSTANCE = new ThrottleAdaptiveLimits();
+
+    static final long UPDATE_MILLIS =
+        Long.getLong(ThrottleAdaptiveLimits.class.getName() + ".updateMillis", 60 * 1000L);
+
+    public static ThrottleAdaptiveLimits get() {
+        return INSTANCE;
+    }
+
+    /** Effective limit by node name, by category. */
+    private volatile Map<String, ConcurrentHashMap<String, Integer>> limits =
+        new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
+
+    ThrottleAdaptiveLimits() {
+    }
+
+    /**
+     * The effective per node limit of the category on the node, given its static limit there.
+     */
+    int limit(String category, Node node, int staticLimit, ThrottleJobProperty.AdaptiveLimit bounds) {
+        ConcurrentHashMap<String, Integer> byNode = limits.get(category);
+        Integer limit = byNode == null ? null : byNode.get(node.getNodeName());
+        int ceiling = bounds.ceiling(staticLimit, node);
+        if (limit == null) {
+            return ceiling;
+        }
+        // The static limit or the bounds may have come down since.
+        return Math.min(ceiling, limit.intValue());
+    }
+
+    /**
+     * The current effective limits of the category, by node name.
+     */
+    public Map<String, Integer> getLimits(String category) {
+        ConcurrentHashMap<String, Integer> byNode = limits.get(category);
+        if (byNode == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(new TreeMap<String, Integer>(byNode));
+    }
+
+    void update() {
+        Hudson hudson = Hudson.getInstance();
+        if (hudson == null) {
+            return;
+        }
+        List<Node> nodes = new ArrayList<Node>(hudson.getNodes());
+        nodes.add(hudson);
+        Map<String, ThrottleJobProperty.ThrottleCategory> table =
+            hudson.getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class).getCategoryTable();
+
+        boolean changed = false;
+        Map<String, ConcurrentHashMap<String, Integer>> next =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
+        for (ThrottleJobProperty.ThrottleCategory category : table.values()) {
+            ThrottleJobProperty.AdaptiveLimit bounds = category.getAdaptiveLimit();
+            if (bounds == null) {
+                continue;
+            }
+            String catNm = category.getCategoryName();
+            ConcurrentHashMap<String, Integer> byNode = new ConcurrentHashMap<String, Integer>();
+            for (Node node : nodes) {
+                Computer computer = node.toComputer();
+                if (computer == null || computer.isOffline()) {
+                    continue;
+                }
+                int staticLimit = category.getMaxConcurrentPerNode(node);
+                int current = limit(catNm, node, staticLimit, bounds);
+                int adjusted = current;
+                if (!isHealthy(computer, bounds)) {
+                    adjusted = Math.max(bounds.getMinimum().intValue(), current / 2);
+                }
+                else if (ThrottleRunCounters.get().categoryRunningOnNode(catNm, node.getNodeName()) >= current) {
+                    adjusted = Math.min(bounds.ceiling(staticLimit, node), current + 1);
+                }
+                changed |= adjusted != current;
+                byNode.put(node.getNodeName(), adjusted);
+            }
+            next.put(catNm, byNode);
+        }
+        limits = next;
+        if (changed) {
+            ThrottleDecisionContext.invalidate();
+        }
+    }
+
+    /**
+     * Whether the node monitors' last data for the computer is within the thresholds.
+     * Data a monitor hasn't collected yet counts as healthy.
+     */
+    private static boolean isHealthy(Computer computer, ThrottleJobProperty.AdaptiveLimit bounds) {
+        Map<String, Object> data = computer.getMonitorData();
+
+        long minMemory = bounds.getMinFreeMemoryMb().longValue() * 1024 * 1024;
+        Object memory = data.get(SwapSpaceMonitor.class.getName());
+        if (minMemory > 0 && memory instanceof MemoryUsage) {
+            long available = ((MemoryUsage) memory).availablePhysicalMemory;
+            if (available >= 0 && available < minMemory) {
+                return false;
+            }
+        }
+
+        long minDisk = bounds.getMinFreeDiskMb().longValue() * 1024 * 1024;
+        Object disk = data.get(DiskSpaceMonitor.class.getName());
+        if (minDisk > 0 && disk instanceof DiskSpaceMonitorDescriptor.DiskSpace) {
+            if (((DiskSpaceMonitorDescriptor.DiskSpace) disk).size < minDisk) {
+                return false;
+            }
+        }
+
+        long maxResponse = bounds.getMaxResponseTimeMillis().longValue();
+        Object response = data.get(ResponseTimeMonitor.class.getName());
+        if (maxResponse > 0 && response instanceof ResponseTimeMonitor.Data) {
+            if (((ResponseTimeMonitor.Data) response).getAverage() > maxResponse) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Extension
+    public static final class Updater extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return UPDATE_MILLIS;
+        }
+
+        @Override
+        protected void doRun() {
+            get().update();
+        }
+    }
+}
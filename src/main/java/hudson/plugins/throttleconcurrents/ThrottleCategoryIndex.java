@@ -0,0 +1,301 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of which throttle-enabled projects belong to which category, so the
+ * dispatcher doesn't have to walk every item in Hudson on each check.
+ *
+ * Writes are serialized on the index; the per-category member lists are replaced
+ * copy-on-write so readers never need to lock, and a rebuild swaps in a whole new
+ * index so readers never see it half done.
+ */
+public final class ThrottleCategoryIndex {
+    private static final ThrottleCategoryIndex INSTANCE = new ThrottleCategoryIndex(ThrottleDecisionContext.INVALIDATE);
+
+    /** Only used by writers, so only ever accessed while holding the index. */
+    private Map<AbstractProject<?,?>, Set<String>> categoriesByProject =
+        new HashMap<AbstractProject<?,?>, Set<String>>();
+    private volatile ConcurrentHashMap<String, List<AbstractProject<?,?>>> projectsByCategory =
+        new ConcurrentHashMap<String, List<AbstractProject<?,?>>>();
+    private volatile boolean loaded;
+    /** Parent, grandparent, ... of each category that has a parent. */
+    private volatile Map<String, List<String>> ancestors = Collections.emptyMap();
+
+    public static ThrottleCategoryIndex get() {
+        return INSTANCE;
+    }
+
+    /** Told whenever membership or nesting changes; null if nobody needs to know. */
+    private final Runnable changed;
+
+    ThrottleCategoryIndex(Runnable changed) {
+        this.changed = changed;
+    }
+
+    private void changed() {
+        if (changed != null) {
+            changed.run();
+        }
+    }
+
+    public List<AbstractProject<?,?>> getCategoryProjects(String category) {
+        if (category == null || category.equals("")) {
+            return Collections.emptyList();
+        }
+        if (!loaded) {
+            rebuild();
+        }
+        List<AbstractProject<?,?>> projects = projectsByCategory.get(category);
+        if (projects == null) {
+            return Collections.emptyList();
+        }
+        return projects;
+    }
+
+    /**
+     * The categories the given one is nested in, nearest first.
+     */
+    public List<String> getAncestors(String category) {
+        List<String> l = ancestors.get(category);
+        if (l == null) {
+            return Collections.emptyList();
+        }
+        return l;
+    }
+
+    void setAncestors(Map<String, List<String>> ancestors) {
+        this.ancestors = ancestors;
+        changed();
+    }
+
+    /**
+     * Follows the parent links of a category through the given table, nearest first.
+     * Stops at a parent that isn't defined, or at one already seen, so a cycle in the
+     * configuration doesn't hang the dispatcher.
+     */
+    static List<String> ancestorsOf(String category, Map<String, ThrottleJobProperty.ThrottleCategory> table) {
+        List<String> chain = new ArrayList<String>();
+        Set<String> seen = new HashSet<String>();
+        seen.add(category);
+        ThrottleJobProperty.ThrottleCategory c = table.get(category);
+        while (c != null) {
+            String parent = c.getParentCategoryName();
+            if (parent == null || !seen.add(parent)) {
+                break;
+            }
+            c = table.get(parent);
+            if (c != null) {
+                chain.add(parent);
+            }
+        }
+        return Collections.unmodifiableList(chain);
+    }
+
+    /**
+     * The categories nested in the given one through the given table, at any depth,
+     * preceded by the category itself: those whose members count against its limits.
+     */
+    static List<String> subtreeOf(String category, Map<String, ThrottleJobProperty.ThrottleCategory> table) {
+        List<String> subtree = new ArrayList<String>();
+        subtree.add(category);
+        for (String name : table.keySet()) {
+            if (!name.equals(category) && ancestorsOf(name, table).contains(category)) {
+                subtree.add(name);
+            }
+        }
+        return Collections.unmodifiableList(subtree);
+    }
+
+    /**
+     * Rescans all projects and replaces the current index with the result.
+     */
+    public synchronized void rebuild() {
+        Map<AbstractProject<?,?>, Set<String>> byProject = new HashMap<AbstractProject<?,?>, Set<String>>();
+        ConcurrentHashMap<String, List<AbstractProject<?,?>>> byCategory =
+            new ConcurrentHashMap<String, List<AbstractProject<?,?>>>();
+
+        Map<String, List<AbstractProject<?,?>>> members = new HashMap<String, List<AbstractProject<?,?>>>();
+        for (AbstractProject<?,?> p : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            Set<String> names = categoriesOf(p);
+            if (names.isEmpty()) {
+                continue;
+            }
+            byProject.put(p, names);
+            for (String name : names) {
+                List<AbstractProject<?,?>> l = members.get(name);
+                if (l == null) {
+                    l = new ArrayList<AbstractProject<?,?>>();
+                    members.put(name, l);
+                }
+                l.add(p);
+            }
+        }
+        for (Map.Entry<String, List<AbstractProject<?,?>>> e : members.entrySet()) {
+            byCategory.put(e.getKey(), Collections.unmodifiableList(e.getValue()));
+        }
+        categoriesByProject = byProject;
+        projectsByCategory = byCategory;
+        loaded = true;
+        changed();
+        LOGGER.fine("Indexed " + byProject.size() + " projects in " + byCategory.size() + " categories");
+    }
+
+    /**
+     * Re-reads the throttle configuration of a single project.
+     */
+    public synchronized void update(AbstractProject<?,?> project) {
+        if (!loaded) {
+            // The full rebuild will pick it up.
+            return;
+        }
+        Set<String> oldNames = categoriesByProject.get(project);
+        if (oldNames == null) {
+            oldNames = Collections.emptySet();
+        }
+        Set<String> newNames = categoriesOf(project);
+        if (oldNames.equals(newNames)) {
+            return;
+        }
+
+        for (String name : oldNames) {
+            if (!newNames.contains(name)) {
+                removeMember(name, project);
+            }
+        }
+        for (String name : newNames) {
+            if (!oldNames.contains(name)) {
+                addMember(name, project);
+            }
+        }
+        if (newNames.isEmpty()) {
+            categoriesByProject.remove(project);
+        }
+        else {
+            categoriesByProject.put(project, newNames);
+        }
+        changed();
+    }
+
+    public synchronized void remove(AbstractProject<?,?> project) {
+        Set<String> oldNames = categoriesByProject.remove(project);
+        if (oldNames != null) {
+            for (String name : oldNames) {
+                removeMember(name, project);
+            }
+            changed();
+        }
+    }
+
+    private void addMember(String name, AbstractProject<?,?> project) {
+        List<AbstractProject<?,?>> old = projectsByCategory.get(name);
+        List<AbstractProject<?,?>> l = old == null
+            ? new ArrayList<AbstractProject<?,?>>(1)
+            : new ArrayList<AbstractProject<?,?>>(old);
+        l.add(project);
+        projectsByCategory.put(name, Collections.unmodifiableList(l));
+    }
+
+    private void removeMember(String name, AbstractProject<?,?> project) {
+        List<AbstractProject<?,?>> old = projectsByCategory.get(name);
+        if (old == null) {
+            return;
+        }
+        List<AbstractProject<?,?>> l = new ArrayList<AbstractProject<?,?>>(old);
+        l.remove(project);
+        if (l.isEmpty()) {
+            projectsByCategory.remove(name);
+        }
+        else {
+            projectsByCategory.put(name, Collections.unmodifiableList(l));
+        }
+    }
+
+    private static Set<String> categoriesOf(AbstractProject<?,?> p) {
+        ThrottleJobProperty t = p.getProperty(ThrottleJobProperty.class);
+        if (t == null || !t.getThrottleEnabled() || t.getCategoryConfigurations() == null) {
+            return Collections.emptySet();
+        }
+        Set<String> names = new HashSet<String>();
+        for (ThrottleJobProperty.CategoryConfiguration catCfg : t.getCategoryConfigurations()) {
+            String catNam = catCfg.getCategoryName();
+            if (catNam != null && !catNam.equals("")) {
+                names.add(catNam);
+            }
+        }
+        return names;
+    }
+
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            get().rebuild();
+        }
+
+        @Override
+        public void onCreated(Item item) {
+            if (item instanceof AbstractProject) {
+                get().update((AbstractProject<?,?>) item);
+            }
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            if (item instanceof AbstractProject) {
+                get().update((AbstractProject<?,?>) item);
+            }
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            // Members are tracked by identity, but re-read in case the rename came with a save.
+            if (item instanceof AbstractProject) {
+                get().update((AbstractProject<?,?>) item);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof AbstractProject) {
+                get().remove((AbstractProject<?,?>) item);
+                ThrottleMetrics.get().forget((AbstractProject<?,?>) item);
+                ThrottleFairShare.get().forget((AbstractProject<?,?>) item);
+                ThrottleDurations.get().forget((AbstractProject<?,?>) item);
+            }
+        }
+    }
+
+    /**
+     * Catches configuration changes, including {@link ThrottleJobProperty} being added,
+     * changed or removed, since those always end with the project being saved.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractProject) {
+                get().update((AbstractProject<?,?>) o);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleCategoryIndex.class.getName());
+}
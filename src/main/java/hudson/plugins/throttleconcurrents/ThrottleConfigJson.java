@@ -0,0 +1,365 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.BulkChange;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+/**
+ * The throttle configuration as plain JSON, with the same field names as the
+ * configuration forms:
+ *
+ * <pre>
+ * {"categories": [{"categoryName": "db", "maxConcurrentTotal": 4, ...}],
+ *  "jobs": {"full/job/name": {"throttleEnabled": true, "throttleOption": "category",
+ *                             "categories": [{"categoryName": "db", "categoryType": "normal", "weight": 1}]}}}
+ * </pre>
+ *
+ * Fields left out get the same defaults as a blank form field. {@link #apply} only
+ * writes what differs from the current configuration.
+ */
+final class ThrottleConfigJson {
+    private ThrottleConfigJson() {
+    }
+
+    /**
+     * The global categories and the throttle settings of every project that has any.
+     */
+    static JSONObject export(Hudson hudson) {
+        JSONObject o = new JSONObject();
+        o.put("categories", toJson(hudson.getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class).getCategories()));
+        JSONObject jobs = new JSONObject();
+        for (AbstractProject<?,?> p : hudson.getAllItems(AbstractProject.class)) {
+            ThrottleJobProperty tjp = p.getProperty(ThrottleJobProperty.class);
+            if (tjp != null) {
+                jobs.put(p.getFullName(), toJson(tjp));
+            }
+        }
+        o.put("jobs", jobs);
+        return o;
+    }
+
+    /**
+     * Brings the configuration in line with the given document and reports what changed.
+     *
+     * With a {@code categories} list, the global categories become exactly that list;
+     * it's saved once, and only if any category differs. Each project under {@code jobs}
+     * gets the given settings, or loses its throttle settings if they are null; only the
+     * projects whose settings differ are saved, once each. Projects left out are not
+     * touched.
+     *
+     * The whole document is checked before anything is saved; a document that doesn't
+     * hold together is rejected with an {@link IllegalArgumentException}. Should saving
+     * fail part way, the report says so under {@code error} and lists the projects
+     * already saved under {@code saved}.
+     */
+    static JSONObject apply(Hudson hudson, JSONObject document, boolean dryRun) {
+        JSONObject report = new JSONObject();
+        report.put("dryRun", dryRun);
+
+        ThrottleJobProperty.DescriptorImpl descriptor =
+            hudson.getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class);
+        List<ThrottleJobProperty.ThrottleCategory> nextCategories = null;
+        JSONArray categories = document.optJSONArray("categories");
+        if (categories != null) {
+            Map<String, ThrottleJobProperty.ThrottleCategory> current =
+                new HashMap<String, ThrottleJobProperty.ThrottleCategory>(descriptor.getCategoryTable());
+            List<ThrottleJobProperty.ThrottleCategory> next = new ArrayList<ThrottleJobProperty.ThrottleCategory>();
+            JSONArray added = new JSONArray();
+            JSONArray changed = new JSONArray();
+            for (int i = 0; i < categories.size(); i++) {
+                ThrottleJobProperty.ThrottleCategory c = toCategory(categories.getJSONObject(i));
+                ThrottleJobProperty.ThrottleCategory old = current.remove(c.getCategoryName());
+                if (old == null) {
+                    added.add(c.getCategoryName());
+                }
+                else if (!toJson(old).equals(toJson(c))) {
+                    changed.add(c.getCategoryName());
+                }
+                else {
+                    // Keep the unchanged instance, and what it has cached.
+                    c = old;
+                }
+                next.add(c);
+            }
+            validate(next);
+            JSONArray removed = new JSONArray();
+            removed.addAll(current.keySet());
+            // Also catches a change in order alone.
+            if (!toJson(next).equals(toJson(descriptor.getCategories()))) {
+                nextCategories = next;
+            }
+            JSONObject c = new JSONObject();
+            c.put("added", added);
+            c.put("changed", changed);
+            c.put("removed", removed);
+            report.put("categories", c);
+        }
+
+        Map<AbstractProject<?,?>, ThrottleJobProperty> nextProperties =
+            new LinkedHashMap<AbstractProject<?,?>, ThrottleJobProperty>();
+        JSONObject jobs = document.optJSONObject("jobs");
+        if (jobs != null && !jobs.isNullObject()) {
+            JSONArray changed = new JSONArray();
+            JSONArray unknown = new JSONArray();
+            int unchanged = 0;
+            for (Iterator<?> it = jobs.keys(); it.hasNext(); ) {
+                String name = (String) it.next();
+                AbstractProject<?,?> p = hudson.getItemByFullName(name, AbstractProject.class);
+                if (p == null) {
+                    unknown.add(name);
+                    continue;
+                }
+                Object value = jobs.get(name);
+                ThrottleJobProperty tjp = value instanceof JSONObject && !((JSONObject) value).isNullObject()
+                    ? toProperty((JSONObject) value)
+                    : null;
+                ThrottleJobProperty old = p.getProperty(ThrottleJobProperty.class);
+                if (old == null ? tjp == null : tjp != null && toJson(old).equals(toJson(tjp))) {
+                    unchanged++;
+                    continue;
+                }
+                changed.add(name);
+                nextProperties.put(p, tjp);
+            }
+            JSONObject j = new JSONObject();
+            j.put("changed", changed);
+            j.put("unchanged", unchanged);
+            j.put("unknown", unknown);
+            report.put("jobs", j);
+        }
+
+        if (dryRun) {
+            return report;
+        }
+        JSONArray saved = new JSONArray();
+        try {
+            if (nextCategories != null) {
+                descriptor.setCategories(nextCategories);
+                descriptor.save();
+                ThrottleRunCounters.get().reconcile();
+            }
+            for (Map.Entry<AbstractProject<?,?>, ThrottleJobProperty> e : nextProperties.entrySet()) {
+                replaceProperty(e.getKey(), e.getValue());
+                saved.add(e.getKey().getFullName());
+            }
+        } catch (IOException e) {
+            report.put("error", e.toString());
+            report.put("saved", saved);
+        } finally {
+            ThrottleDecisionContext.invalidate();
+        }
+        return report;
+    }
+
+    /**
+     * Rejects categories without a name, with a name taken by another one, with a
+     * parent that isn't among them or that leads back to the category itself, or with
+     * an adaptive limit whose maximum is below its minimum.
+     */
+    static void validate(List<ThrottleJobProperty.ThrottleCategory> categories) {
+        Map<String, ThrottleJobProperty.ThrottleCategory> table =
+            new HashMap<String, ThrottleJobProperty.ThrottleCategory>();
+        for (int i = 0; i < categories.size(); i++) {
+            String name = categories.get(i).getCategoryName();
+            if (name == null || name.trim().length() == 0) {
+                throw new IllegalArgumentException("Category " + i + " has no categoryName");
+            }
+            if (table.put(name, categories.get(i)) != null) {
+                throw new IllegalArgumentException("Category " + name + " is defined more than once");
+            }
+            ThrottleJobProperty.AdaptiveLimit a = categories.get(i).getAdaptiveLimit();
+            if (a != null && a.getMaximum().intValue() > 0 && a.getMaximum().intValue() < a.getMinimum().intValue()) {
+                throw new IllegalArgumentException("Category " + name + " has an adaptive maximum below its minimum");
+            }
+        }
+        for (ThrottleJobProperty.ThrottleCategory category : categories) {
+            Set<String> seen = new HashSet<String>();
+            seen.add(category.getCategoryName());
+            ThrottleJobProperty.ThrottleCategory c = category;
+            while (c.getParentCategoryName() != null) {
+                String parent = c.getParentCategoryName();
+                c = table.get(parent);
+                if (c == null) {
+                    throw new IllegalArgumentException("Category " + category.getCategoryName()
+                                                       + " has an unknown parent " + parent);
+                }
+                if (!seen.add(parent)) {
+                    throw new IllegalArgumentException("Category " + category.getCategoryName()
+                                                       + " is nested in itself through " + parent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Swaps the throttle settings of the project with a single write of its configuration.
+     */
+    private static void replaceProperty(AbstractProject<?,?> p, ThrottleJobProperty tjp) throws IOException {
+        BulkChange bc = new BulkChange(p);
+        try {
+            p.removeProperty(ThrottleJobProperty.class);
+            if (tjp != null) {
+                p.addProperty(tjp);
+            }
+            bc.commit();
+        } finally {
+            bc.abort();
+        }
+    }
+
+    static JSONArray toJson(List<ThrottleJobProperty.ThrottleCategory> categories) {
+        JSONArray a = new JSONArray();
+        for (ThrottleJobProperty.ThrottleCategory category : categories) {
+            a.add(toJson(category));
+        }
+        return a;
+    }
+
+    static JSONObject toJson(ThrottleJobProperty.ThrottleCategory category) {
+        JSONObject o = new JSONObject();
+        o.put("categoryName", category.getCategoryName());
+        o.put("maxConcurrentTotal", category.getMaxConcurrentTotal());
+        o.put("maxConcurrentPerNode", category.getMaxConcurrentPerNode());
+        o.put("fairness", category.getFairness());
+        o.put("writerPreference", category.getWriterPreference());
+        o.put("maxWriterWait", category.getMaxWriterWait());
+        o.put("rateLimitStarts", category.getRateLimitStarts());
+        o.put("rateLimitInterval", category.getRateLimitInterval());
+        o.put("rateLimitBurst", category.getRateLimitBurst());
+        if (category.getParentCategoryName() != null) {
+            o.put("parentCategoryName", category.getParentCategoryName());
+        }
+        JSONArray nodeLimits = new JSONArray();
+        for (ThrottleJobProperty.NodeLimit nodeLimit : category.getNodeLimits()) {
+            JSONObject l = new JSONObject();
+            if (nodeLimit.getLabelExpression() != null) {
+                l.put("labelExpression", nodeLimit.getLabelExpression());
+            }
+            l.put("maxConcurrentPerNode", nodeLimit.getMaxConcurrentPerNode());
+            l.put("perExecutor", nodeLimit.getPerExecutor());
+            nodeLimits.add(l);
+        }
+        o.put("nodeLimits", nodeLimits);
+        ThrottleJobProperty.AdaptiveLimit adaptiveLimit = category.getAdaptiveLimit();
+        if (adaptiveLimit != null) {
+            JSONObject a = new JSONObject();
+            a.put("minimum", adaptiveLimit.getMinimum());
+            a.put("maximum", adaptiveLimit.getMaximum());
+            a.put("minFreeMemoryMb", adaptiveLimit.getMinFreeMemoryMb());
+            a.put("minFreeDiskMb", adaptiveLimit.getMinFreeDiskMb());
+            a.put("maxResponseTimeMillis", adaptiveLimit.getMaxResponseTimeMillis());
+            o.put("adaptiveLimit", a);
+        }
+        return o;
+    }
+
+    static ThrottleJobProperty.ThrottleCategory toCategory(JSONObject o) {
+        List<ThrottleJobProperty.NodeLimit> nodeLimits = new ArrayList<ThrottleJobProperty.NodeLimit>();
+        JSONArray a = o.optJSONArray("nodeLimits");
+        if (a != null) {
+            for (int i = 0; i < a.size(); i++) {
+                JSONObject l = a.getJSONObject(i);
+                nodeLimits.add(new ThrottleJobProperty.NodeLimit(optString(l, "labelExpression"),
+                                                                 optInteger(l, "maxConcurrentPerNode"),
+                                                                 l.optBoolean("perExecutor")));
+            }
+        }
+        ThrottleJobProperty.AdaptiveLimit adaptiveLimit = null;
+        JSONObject l = o.optJSONObject("adaptiveLimit");
+        if (l != null && !l.isNullObject()) {
+            adaptiveLimit = new ThrottleJobProperty.AdaptiveLimit(optInteger(l, "minimum"),
+                                                                  optInteger(l, "maximum"),
+                                                                  optInteger(l, "minFreeMemoryMb"),
+                                                                  optInteger(l, "minFreeDiskMb"),
+                                                                  optInteger(l, "maxResponseTimeMillis"));
+        }
+        return new ThrottleJobProperty.ThrottleCategory(optString(o, "categoryName"),
+                                                        optInteger(o, "maxConcurrentPerNode"),
+                                                        optInteger(o, "maxConcurrentTotal"),
+                                                        optString(o, "fairness"),
+                                                        o.optBoolean("writerPreference"),
+                                                        optInteger(o, "maxWriterWait"),
+                                                        nodeLimits,
+                                                        optInteger(o, "rateLimitStarts"),
+                                                        optInteger(o, "rateLimitInterval"),
+                                                        optInteger(o, "rateLimitBurst"),
+                                                        optString(o, "parentCategoryName"),
+                                                        adaptiveLimit);
+    }
+
+    static JSONObject toJson(ThrottleJobProperty property) {
+        JSONObject o = new JSONObject();
+        o.put("throttleEnabled", property.getThrottleEnabled());
+        o.put("throttleOption", property.getThrottleOption());
+        o.put("maxConcurrentPerNode", property.getMaxConcurrentPerNode());
+        o.put("maxConcurrentTotal", property.getMaxConcurrentTotal());
+        o.put("throttleMatrixConfigurations", property.getThrottleMatrixConfigurations());
+        JSONArray categories = new JSONArray();
+        if (property.getCategoryConfigurations() != null) {
+            for (ThrottleJobProperty.CategoryConfiguration catCfg : property.getCategoryConfigurations()) {
+                JSONObject c = new JSONObject();
+                c.put("categoryName", catCfg.getCategoryName());
+                c.put("categoryType", catCfg.getCategoryType());
+                c.put("weight", catCfg.getWeight());
+                categories.add(c);
+            }
+        }
+        o.put("categories", categories);
+        return o;
+    }
+
+    static ThrottleJobProperty toProperty(JSONObject o) {
+        List<ThrottleJobProperty.CategoryConfiguration> categories =
+            new ArrayList<ThrottleJobProperty.CategoryConfiguration>();
+        JSONArray a = o.optJSONArray("categories");
+        if (a != null) {
+            for (int i = 0; i < a.size(); i++) {
+                JSONObject c = a.getJSONObject(i);
+                String type = optString(c, "categoryType");
+                categories.add(new ThrottleJobProperty.CategoryConfiguration(optString(c, "categoryName"),
+                                                                             type == null ? "normal" : type,
+                                                                             optInteger(c, "weight")));
+            }
+        }
+        String throttleOption = optString(o, "throttleOption");
+        if (throttleOption == null) {
+            throttleOption = categories.isEmpty() ? "project" : "category";
+        }
+        return new ThrottleJobProperty(optInteger(o, "maxConcurrentPerNode"),
+                                       optInteger(o, "maxConcurrentTotal"),
+                                       categories,
+                                       o.optBoolean("throttleEnabled", true),
+                                       throttleOption,
+                                       o.optBoolean("throttleMatrixConfigurations"));
+    }
+
+    private static Integer optInteger(JSONObject o, String key) {
+        Object v = o.opt(key);
+        if (v == null || JSONNull.getInstance().equals(v)) {
+            return null;
+        }
+        return o.getInt(key);
+    }
+
+    private static String optString(JSONObject o, String key) {
+        Object v = o.opt(key);
+        if (v == null || JSONNull.getInstance().equals(v)) {
+            return null;
+        }
+        return v.toString();
+    }
+}
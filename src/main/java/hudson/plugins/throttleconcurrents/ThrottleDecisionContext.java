@@ -0,0 +1,436 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Util;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshot of everything the dispatcher looks at, shared by all the
+ * {@code canTake}/{@code canRun} calls of one queue maintenance pass.
+ *
+ * Values are filled in lazily on first use; running counts are read straight from
+ * {@link ThrottleRunCounters}, which is as cheap as a cache lookup. The snapshot is
+ * thrown away once it is older than a queue pass is expected to take, or as soon as
+ * something it caches may have changed: a build starting or finishing, a reservation
+ * being taken or released, or throttle configuration changing. Pending flags alone
+ * are dropped whenever a task starts or stops counting as pending.
+ */
+final class ThrottleDecisionContext {
+    private static final long MAX_AGE_MILLIS =
+        Long.getLong(ThrottleDecisionContext.class.getName() + ".maxAgeMillis", 1000L);
+
+    private static final AtomicLong GENERATION = new AtomicLong();
+    /** Notified on {@link #invalidate()} while anyone is in {@link #awaitChange}. */
+    private static final Object CHANGED = new Object();
+    private static final AtomicInteger AWAITING = new AtomicInteger();
+    private static volatile ThrottleDecisionContext current;
+
+    /**
+     * Where a snapshot gets its data from, and the state decisions update. {@link #LIVE}
+     * uses the running Hudson instance and the plugin's singletons; benchmarks and the
+     * simulator plug in synthetic data and instances of their own instead.
+     */
+    interface Inputs {
+        List<AbstractProject<?,?>> getCategoryProjects(String category);
+        Map<String, ThrottleJobProperty.ThrottleCategory> getCategoryTable();
+        boolean isPending(Task task);
+        ThrottleRunCounters getCounters();
+        /** Items in the queue past their quiet period, blocked or buildable. */
+        List<Queue.Item> getQueuedItems();
+        ThrottleMetrics getMetrics();
+        ThrottleFairShare getFairShare();
+        ThrottlePendingTracker getPendingTracker();
+        ThrottleRateLimiter getRateLimiter();
+        ThrottleDurations getDurations();
+    }
+
+    static final Inputs LIVE = new Inputs() {
+        public List<AbstractProject<?,?>> getCategoryProjects(String category) {
+            return ThrottleCategoryIndex.get().getCategoryProjects(category);
+        }
+
+        public Map<String, ThrottleJobProperty.ThrottleCategory> getCategoryTable() {
+            return Hudson.getInstance().getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class)
+                .getCategoryTable();
+        }
+
+        public boolean isPending(Task task) {
+            return ThrottlePendingTracker.get().isPending(task);
+        }
+
+        public ThrottleRunCounters getCounters() {
+            return ThrottleRunCounters.get();
+        }
+
+        public List<Queue.Item> getQueuedItems() {
+            List<Queue.Item> items = new ArrayList<Queue.Item>();
+            for (Queue.Item item : Hudson.getInstance().getQueue().getItems()) {
+                if (!(item instanceof Queue.WaitingItem)) {
+                    items.add(item);
+                }
+            }
+            return items;
+        }
+
+        public ThrottleMetrics getMetrics() {
+            return ThrottleMetrics.get();
+        }
+
+        public ThrottleFairShare getFairShare() {
+            return ThrottleFairShare.get();
+        }
+
+        public ThrottlePendingTracker getPendingTracker() {
+            return ThrottlePendingTracker.get();
+        }
+
+        public ThrottleRateLimiter getRateLimiter() {
+            return ThrottleRateLimiter.get();
+        }
+
+        public ThrottleDurations getDurations() {
+            return ThrottleDurations.get();
+        }
+    };
+
+    /** {@link #invalidate()} as a hook for the live counters and index. */
+    static final Runnable INVALIDATE = new Runnable() {
+        public void run() {
+            invalidate();
+        }
+    };
+
+    static ThrottleDecisionContext get() {
+        long gen = GENERATION.get();
+        long now = System.currentTimeMillis();
+        ThrottleDecisionContext c = current;
+        long pendingVersion = ThrottlePendingTracker.get().version();
+        if (c == null || c.generation != gen || now - c.createdAt > MAX_AGE_MILLIS) {
+            c = new ThrottleDecisionContext(LIVE, gen, now);
+            c.pendingVersion = pendingVersion;
+            current = c;
+        }
+        else if (c.pendingVersion != pendingVersion) {
+            c.pendingVersion = pendingVersion;
+            c.pending.clear();
+            c.categoryPending.clear();
+            c.configurationPending.clear();
+        }
+        return c;
+    }
+
+    /**
+     * A fresh, uncached snapshot over the given inputs.
+     */
+    static ThrottleDecisionContext create(Inputs inputs) {
+        return new ThrottleDecisionContext(inputs, -1, System.currentTimeMillis());
+    }
+
+    static void invalidate() {
+        GENERATION.incrementAndGet();
+        if (AWAITING.get() > 0) {
+            synchronized (CHANGED) {
+                CHANGED.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the {@link #generation()} differs from {@code since}, or for at most
+     * {@code timeoutMillis}, and returns the generation then.
+     */
+    static long awaitChange(long since, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        // Counted before looking at the generation, so a change in between still notifies.
+        AWAITING.incrementAndGet();
+        try {
+            synchronized (CHANGED) {
+                long left;
+                while (GENERATION.get() == since && (left = deadline - System.currentTimeMillis()) > 0) {
+                    CHANGED.wait(left);
+                }
+            }
+        } finally {
+            AWAITING.decrementAndGet();
+        }
+        return GENERATION.get();
+    }
+
+    /**
+     * Bumped by every {@link #invalidate()}, i.e. whenever throttle state may have changed.
+     */
+    static long generation() {
+        return GENERATION.get();
+    }
+
+    private final Inputs inputs;
+    private final ThrottleRunCounters counters;
+    private final long generation;
+    private final long createdAt;
+    /** The {@link ThrottlePendingTracker#version()} the pending flags were cached at. */
+    private volatile long pendingVersion;
+
+    private final ConcurrentHashMap<String, List<AbstractProject<?,?>>> members =
+        new ConcurrentHashMap<String, List<AbstractProject<?,?>>>();
+    private volatile Map<String, ThrottleJobProperty.ThrottleCategory> categoryTable;
+    private volatile Map<String, List<Queue.Item>> queuedByCategory;
+    private final ConcurrentHashMap<Task, Boolean> pending = new ConcurrentHashMap<Task, Boolean>();
+    private final ConcurrentHashMap<String, List<Task>> categoryPending = new ConcurrentHashMap<String, List<Task>>();
+    /** Arrays of one, which is null if there is no preferred writer. */
+    private final ConcurrentHashMap<String, Task[]> preferredWriters = new ConcurrentHashMap<String, Task[]>();
+    private final ConcurrentHashMap<Task, List<Task>> configurationPending = new ConcurrentHashMap<Task, List<Task>>();
+
+    private ThrottleDecisionContext(Inputs inputs, long generation, long createdAt) {
+        this.inputs = inputs;
+        this.counters = inputs.getCounters();
+        this.generation = generation;
+        this.createdAt = createdAt;
+    }
+
+    ThrottleMetrics metrics() {
+        return inputs.getMetrics();
+    }
+
+    ThrottleFairShare fairShare() {
+        return inputs.getFairShare();
+    }
+
+    ThrottlePendingTracker pendingTracker() {
+        return inputs.getPendingTracker();
+    }
+
+    ThrottleRateLimiter rateLimiter() {
+        return inputs.getRateLimiter();
+    }
+
+    List<AbstractProject<?,?>> getCategoryProjects(String category) {
+        List<AbstractProject<?,?>> l = members.get(category);
+        if (l == null) {
+            l = inputs.getCategoryProjects(category);
+            members.put(category, l);
+        }
+        return l;
+    }
+
+    Map<String, ThrottleJobProperty.ThrottleCategory> getCategoryTable() {
+        Map<String, ThrottleJobProperty.ThrottleCategory> t = categoryTable;
+        if (t == null) {
+            t = inputs.getCategoryTable();
+            categoryTable = t;
+        }
+        return t;
+    }
+
+    /**
+     * Queued items (past their quiet period) of throttle-enabled members of the category,
+     * including the matrix configurations of members that throttle those.
+     */
+    List<Queue.Item> getQueuedItems(String category) {
+        Map<String, List<Queue.Item>> m = queuedByCategory;
+        if (m == null) {
+            m = new HashMap<String, List<Queue.Item>>();
+            for (Queue.Item item : inputs.getQueuedItems()) {
+                ThrottleJobProperty tjp = propertyOf(item.task);
+                if (tjp == null || !tjp.getThrottleEnabled() || !tjp.getPolicy().throttles(item.task)) {
+                    continue;
+                }
+                for (String catNm : tjp.getPolicy().categoryNames) {
+                    List<Queue.Item> l = m.get(catNm);
+                    if (l == null) {
+                        l = new ArrayList<Queue.Item>();
+                        m.put(catNm, l);
+                    }
+                    l.add(item);
+                }
+            }
+            queuedByCategory = m;
+        }
+        List<Queue.Item> l = m.get(category);
+        return l == null ? Collections.<Queue.Item>emptyList() : l;
+    }
+
+    /**
+     * The distinct projects of {@link #getQueuedItems(String)}.
+     */
+    Set<Task> getQueuedMembers(String category) {
+        Set<Task> tasks = new LinkedHashSet<Task>();
+        for (Queue.Item item : getQueuedItems(category)) {
+            tasks.add(ThrottlePolicy.accountedTask(item.task));
+        }
+        return tasks;
+    }
+
+    /**
+     * The queued writer of the category that new readers should make way for, held back
+     * by the running readers alone for less than {@code maxWaitMillis}; null if there is
+     * none. See {@link ThrottleFairShare#preferredWriter}.
+     */
+    Task getPreferredWriter(String category, long maxWaitMillis) {
+        Task[] w = preferredWriters.get(category);
+        if (w == null) {
+            w = new Task[] { fairShare().preferredWriter(category, getQueuedMembers(category), maxWaitMillis) };
+            preferredWriters.put(category, w);
+        }
+        return w[0];
+    }
+
+    boolean isPending(Task task) {
+        Boolean b = pending.get(task);
+        if (b == null) {
+            b = inputs.isPending(task);
+            pending.put(task, b);
+        }
+        return b;
+    }
+
+    /**
+     * Whether any member of the category, or a throttled matrix configuration of one,
+     * is pending launch, leaving out {@code self}: a task is never held back by itself.
+     */
+    boolean isCategoryPending(String category, Task self) {
+        return containsOther(pendingMembers(category), self);
+    }
+
+    /**
+     * Whether any configuration of a matrix project that throttles its configurations
+     * is pending launch, leaving out {@code self}; false for any other project.
+     */
+    boolean isConfigurationPending(Task project, Task self) {
+        return containsOther(pendingConfigurations(project), self);
+    }
+
+    private List<Task> pendingMembers(String category) {
+        List<Task> l = categoryPending.get(category);
+        if (l == null) {
+            l = new ArrayList<Task>(1);
+            for (AbstractProject<?,?> catProj : getCategoryProjects(category)) {
+                if (isPending(catProj)) {
+                    l.add(catProj);
+                }
+                l.addAll(pendingConfigurations(catProj));
+            }
+            categoryPending.put(category, l);
+        }
+        return l;
+    }
+
+    private List<Task> pendingConfigurations(Task project) {
+        if (!(project instanceof MatrixProject)) {
+            return Collections.emptyList();
+        }
+        List<Task> l = configurationPending.get(project);
+        if (l == null) {
+            l = new ArrayList<Task>(1);
+            MatrixProject matrix = (MatrixProject) project;
+            ThrottleJobProperty tjp = matrix.getProperty(ThrottleJobProperty.class);
+            if (tjp != null && tjp.getThrottleEnabled() && tjp.getPolicy().matrixConfigurations) {
+                for (MatrixConfiguration c : matrix.getActiveConfigurations()) {
+                    if (isPending(c)) {
+                        l.add(c);
+                    }
+                }
+            }
+            configurationPending.put(project, l);
+        }
+        return l;
+    }
+
+    private static boolean containsOther(List<Task> tasks, Task self) {
+        for (Task t : tasks) {
+            if (t != self) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ThrottleJobProperty propertyOf(Task task) {
+        Task project = ThrottlePolicy.accountedTask(task);
+        if (!(project instanceof AbstractProject)) {
+            return null;
+        }
+        return ((AbstractProject<?,?>) project).getProperty(ThrottleJobProperty.class);
+    }
+
+    /**
+     * What the task's own reservation counts, so that it isn't held back by itself;
+     * null if it holds none. Not cached: taking a reservation invalidates the snapshot.
+     */
+    ThrottleRunCounters.Entry ownReservation(Task task) {
+        return counters.reservationOf(task);
+    }
+
+    int running(Task task) {
+        return counters.running(task);
+    }
+
+    int runningOnNode(Task task, String nodeName) {
+        return counters.runningOnNode(task, nodeName);
+    }
+
+    int categoryRunning(String category) {
+        return counters.categoryRunning(category);
+    }
+
+    int categoryWritersRunning(String category) {
+        return counters.categoryWritersRunning(category);
+    }
+
+    int categoryRunningOnNode(String category, String nodeName) {
+        return counters.categoryRunningOnNode(category, nodeName);
+    }
+
+    /**
+     * The estimated wait for {@code needed} slots as a blockage message argument; see
+     * {@link WaitHint}.
+     */
+    Object waitHint(String category, Task project, String nodeName, int needed) {
+        return new WaitHint(counters, inputs.getDurations(), category, project, nodeName, needed);
+    }
+
+    /**
+     * The estimated wait for {@code needed} slots (see {@link ThrottleRunCounters#estimateWait}),
+     * worked out only when the blockage message is formatted, i.e. when someone looks at
+     * why a task waits rather than on every check of the queue pass; empty if there is no
+     * telling.
+     */
+    static final class WaitHint {
+        private final ThrottleRunCounters counters;
+        private final ThrottleDurations durations;
+        private final String category;
+        private final Task project;
+        private final String nodeName;
+        private final int needed;
+
+        WaitHint(ThrottleRunCounters counters, ThrottleDurations durations, String category, Task project,
+                 String nodeName, int needed) {
+            this.counters = counters;
+            this.durations = durations;
+            this.category = category;
+            this.project = project;
+            this.nodeName = nodeName;
+            this.needed = needed;
+        }
+
+        @Override
+        public String toString() {
+            long wait = counters.estimateWait(category, project, nodeName, needed, durations);
+            return wait <= 0 ? "" : Messages.ThrottleQueueTaskDispatcher_NextSlot(Util.getTimeSpanString(wait));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.AbstractProject;
+import hudson.model.Queue.Task;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Expected build duration per project, as an exponentially weighted moving average of
+ * the builds seen finishing, so memory stays at one entry per project. Until a project
+ * has finished a build here, its own estimated duration is used.
+ */
+public final class ThrottleDurations {
+    private static final ThrottleDurations INSTANCE = new ThrottleDurations();
+
+    /** Weight of the latest build in the average. */
+    static final double ALPHA = 0.3;
+
+    public static ThrottleDurations get() {
+        return INSTANCE;
+    }
+
+    private final ConcurrentHashMap<Task, Average> averages = new ConcurrentHashMap<Task, Average>();
+
+    ThrottleDurations() {
+    }
+
+    void completed(Task project, long durationMillis) {
+        Average a = averages.get(project);
+        if (a == null) {
+            a = new Average();
+            Average prev = averages.putIfAbsent(project, a);
+            if (prev != null) {
+                a = prev;
+            }
+        }
+        a.add(durationMillis);
+    }
+
+    /**
+     * Expected duration in milliseconds, or -1 if unknown.
+     */
+    long expected(Task project) {
+        Average a = averages.get(project);
+        if (a != null) {
+            return a.get();
+        }
+        long estimate = project instanceof AbstractProject ? ((AbstractProject<?,?>) project).getEstimatedDuration() : -1;
+        if (estimate >= 0) {
+            // Remember it; asking the project loads its recent builds.
+            a = new Average();
+            a.add(estimate);
+            averages.putIfAbsent(project, a);
+        }
+        return estimate;
+    }
+
+    void forget(Task project) {
+        averages.remove(project);
+    }
+
+    /**
+     * Estimated milliseconds until {@code needed} slots free up; see
+     * {@link ThrottleRunCounters#estimateWait}.
+     */
+    public long estimateWait(String category, Task project, String nodeName, int needed) {
+        return ThrottleRunCounters.get().estimateWait(category, project, nodeName, needed, this);
+    }
+
+    private static final class Average {
+        private double mean = -1;
+
+        synchronized void add(long durationMillis) {
+            mean = mean < 0 ? durationMillis : ALPHA * durationMillis + (1 - ALPHA) * mean;
+        }
+
+        synchronized long get() {
+            return (long) mean;
+        }
+    }
+}
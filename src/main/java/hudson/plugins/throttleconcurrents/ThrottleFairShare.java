@@ -0,0 +1,236 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.Queue.Task;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent per-project usage of each category, used to decide which waiting member
+ * of a category with a fairness mode gets the next free slot.
+ *
+ * Round robin favours the member that started least recently. Fair share favours
+ * the member with the lowest usage score, where every start adds one and the score
+ * halves every {@link #HALF_LIFE_MILLIS}.
+ *
+ * A member that has been favoured for {@link #GRACE_MILLIS} without starting (it may
+ * be held back by a label, another category, or a dispatcher of another plugin)
+ * stops holding the others back until it starts.
+ *
+ * Also tracks the writers of categories that prefer writers: since when each one has
+ * waited for nothing but the running readers to finish.
+ */
+public final class ThrottleFairShare {
+    private static final ThrottleFairShare INSTANCE = new ThrottleFairShare();
+
+    static final long HALF_LIFE_MILLIS =
+        Long.getLong(ThrottleFairShare.class.getName() + ".halfLifeMillis", 60 * 60 * 1000L);
+    static final long GRACE_MILLIS =
+        Long.getLong(ThrottleFairShare.class.getName() + ".graceMillis", 60 * 1000L);
+
+    public static ThrottleFairShare get() {
+        return INSTANCE;
+    }
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Task, Usage>> usage =
+        new ConcurrentHashMap<String, ConcurrentHashMap<Task, Usage>>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Task, Hold>> holds =
+        new ConcurrentHashMap<String, ConcurrentHashMap<Task, Hold>>();
+
+    ThrottleFairShare() {
+    }
+
+    void started(Task project, List<String> categories) {
+        long now = System.currentTimeMillis();
+        for (String category : categories) {
+            usageOf(category, project).started(now);
+            ConcurrentHashMap<Task, Hold> m = holds.get(category);
+            if (m != null) {
+                m.remove(project);
+            }
+        }
+    }
+
+    /**
+     * Notes which of the categories {@code writer} writes to hold it back through their
+     * running readers alone; {@code blocked} is empty if something else holds it back.
+     * A writer's time keeps counting from the first time its readers held it back, even
+     * if something else did in between, until it starts.
+     */
+    void writerBlocked(Task writer, String[] categories, BitSet writes, Collection<String> blocked) {
+        long now = System.currentTimeMillis();
+        for (int i = writes.nextSetBit(0); i >= 0; i = writes.nextSetBit(i + 1)) {
+            String category = categories[i];
+            boolean byReaders = blocked.contains(category);
+            ConcurrentHashMap<Task, Hold> m = holds.get(category);
+            if (m == null) {
+                if (!byReaders) {
+                    continue;
+                }
+                m = new ConcurrentHashMap<Task, Hold>();
+                ConcurrentHashMap<Task, Hold> prev = holds.putIfAbsent(category, m);
+                if (prev != null) {
+                    m = prev;
+                }
+            }
+            Hold h = m.get(writer);
+            if (h == null) {
+                if (!byReaders) {
+                    continue;
+                }
+                h = new Hold(now);
+                Hold prev = m.putIfAbsent(writer, h);
+                if (prev != null) {
+                    h = prev;
+                }
+            }
+            h.byReaders = byReaders;
+        }
+    }
+
+    /**
+     * The queued writer of the category that new readers should make way for: the one
+     * held back the longest by the running readers alone, unless that has gone on for
+     * {@code maxWaitMillis} already. Null if there is none. Forgets writers that aren't
+     * queued any more.
+     */
+    Task preferredWriter(String category, Collection<Task> queued, long maxWaitMillis) {
+        ConcurrentHashMap<Task, Hold> m = holds.get(category);
+        if (m == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Task oldest = null;
+        long oldestSince = Long.MAX_VALUE;
+        for (Iterator<Map.Entry<Task, Hold>> it = m.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Task, Hold> e = it.next();
+            if (!queued.contains(e.getKey())) {
+                it.remove();
+                continue;
+            }
+            Hold h = e.getValue();
+            if (h.byReaders && now - h.since < maxWaitMillis && h.since < oldestSince) {
+                oldest = e.getKey();
+                oldestSince = h.since;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * The waiting member that should get the category's next slot before {@code task},
+     * or null if {@code task} may go ahead.
+     */
+    Task preferredOver(String category, ThrottlePolicy.Fairness fairness, Task task, Collection<Task> waiting) {
+        if (fairness == ThrottlePolicy.Fairness.NONE || waiting.isEmpty()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        double own = usageOf(category, task).rank(fairness, now);
+
+        Task best = null;
+        double bestRank = own;
+        for (Task other : waiting) {
+            if (other == task) {
+                continue;
+            }
+            Usage u = usageOf(category, other);
+            if (u.isStale(now)) {
+                continue;
+            }
+            double rank = u.rank(fairness, now);
+            if (rank < bestRank) {
+                best = other;
+                bestRank = rank;
+            }
+        }
+        if (best != null) {
+            usageOf(category, best).preferred(now);
+        }
+        return best;
+    }
+
+    private Usage usageOf(String category, Task project) {
+        ConcurrentHashMap<Task, Usage> m = usage.get(category);
+        if (m == null) {
+            m = new ConcurrentHashMap<Task, Usage>();
+            ConcurrentHashMap<Task, Usage> prev = usage.putIfAbsent(category, m);
+            if (prev != null) {
+                m = prev;
+            }
+        }
+        Usage u = m.get(project);
+        if (u == null) {
+            u = new Usage();
+            Usage prev = m.putIfAbsent(project, u);
+            if (prev != null) {
+                u = prev;
+            }
+        }
+        return u;
+    }
+
+    void forget(Task project) {
+        for (ConcurrentHashMap<Task, Usage> m : usage.values()) {
+            m.remove(project);
+        }
+        for (ConcurrentHashMap<Task, Hold> m : holds.values()) {
+            m.remove(project);
+        }
+    }
+
+    private static final class Hold {
+        /** When the readers first held the writer back. */
+        final long since;
+        /** Whether only the readers hold it back right now. */
+        volatile boolean byReaders;
+
+        Hold(long since) {
+            this.since = since;
+        }
+    }
+
+    private static final class Usage {
+        private double score;
+        private long scoredAt;
+        private long lastStart;
+        /** When this member first got preferred over another one without starting since; 0 if not. */
+        private long preferredSince;
+
+        synchronized void started(long now) {
+            score = decayed(now) + 1;
+            scoredAt = now;
+            lastStart = now;
+            preferredSince = 0;
+        }
+
+        synchronized void preferred(long now) {
+            if (preferredSince == 0) {
+                preferredSince = now;
+            }
+        }
+
+        synchronized boolean isStale(long now) {
+            return preferredSince != 0 && now - preferredSince > GRACE_MILLIS;
+        }
+
+        /** Lower goes first. */
+        synchronized double rank(ThrottlePolicy.Fairness fairness, long now) {
+            if (fairness == ThrottlePolicy.Fairness.ROUND_ROBIN) {
+                return lastStart;
+            }
+            return decayed(now);
+        }
+
+        private double decayed(long now) {
+            if (score == 0) {
+                return 0;
+            }
+            return score * Math.pow(0.5, (double) (now - scoredAt) / HALF_LIFE_MILLIS);
+        }
+    }
+}
@@ -2,25 +2,35 @@ package hudson.plugins.throttleconcurrents;
 
 import hudson.Extension;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
+import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.Util;
 
 import java.util.regex.Pattern;
 
+import antlr.ANTLRException;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.util.logging.Logger;
 import java.util.logging.Level;
@@ -35,24 +45,42 @@ public class ThrottleJobProperty extends JobProperty<AbstractProject<?,?>> {
     private List<CategoryConfiguration> categoryConfigurations;
     private boolean throttleEnabled;
     private String throttleOption;
+    /**
+     * For matrix projects: throttle each configuration as a build of this project,
+     * instead of the parent (flyweight) build.
+     */
+    private boolean throttleMatrixConfigurations;
 
     /**
      * Store a config version so we're able to migrate config on various
      * functionality upgrades.
      */
     private Long configVersion;
+
+    private transient volatile ThrottlePolicy policy;
     
     @DataBoundConstructor
     public ThrottleJobProperty(Integer maxConcurrentPerNode,
                                Integer maxConcurrentTotal,
                                List<CategoryConfiguration> categoryConfigurations,
                                boolean throttleEnabled,
-                               String throttleOption) {
+                               String throttleOption,
+                               boolean throttleMatrixConfigurations) {
         this.maxConcurrentPerNode = maxConcurrentPerNode == null ? 0 : maxConcurrentPerNode;
         this.maxConcurrentTotal = maxConcurrentTotal == null ? 0 : maxConcurrentTotal;
         this.categoryConfigurations = categoryConfigurations;
         this.throttleEnabled = throttleEnabled;
         this.throttleOption = throttleOption;
+        this.throttleMatrixConfigurations = throttleMatrixConfigurations;
+        this.policy = compilePolicy();
+    }
+
+    public ThrottleJobProperty(Integer maxConcurrentPerNode,
+                               Integer maxConcurrentTotal,
+                               List<CategoryConfiguration> categoryConfigurations,
+                               boolean throttleEnabled,
+                               String throttleOption) {
+        this(maxConcurrentPerNode, maxConcurrentTotal, categoryConfigurations, throttleEnabled, throttleOption, false);
     }
 
 
@@ -92,9 +120,30 @@ public class ThrottleJobProperty extends JobProperty<AbstractProject<?,?>> {
             }
         }
         configVersion = 2L;
+        policy = compilePolicy();
         
         return this;
     }
+
+    private ThrottlePolicy compilePolicy() {
+        return new ThrottlePolicy(throttleOption,
+                                  getMaxConcurrentPerNode().intValue(),
+                                  getMaxConcurrentTotal().intValue(),
+                                  categoryConfigurations,
+                                  throttleMatrixConfigurations);
+    }
+
+    /**
+     * This property's configuration in the form the dispatcher evaluates.
+     */
+    ThrottlePolicy getPolicy() {
+        ThrottlePolicy p = policy;
+        if (p == null) {
+            p = compilePolicy();
+            policy = p;
+        }
+        return p;
+    }
     
     public boolean getThrottleEnabled() {
         return throttleEnabled;
@@ -103,6 +152,10 @@ public class ThrottleJobProperty extends JobProperty<AbstractProject<?,?>> {
     public String getThrottleOption() {
         return throttleOption;
     }
+
+    public boolean getThrottleMatrixConfigurations() {
+        return throttleMatrixConfigurations;
+    }
     
     public List<CategoryConfiguration> getCategoryConfigurations() {
         return categoryConfigurations;
@@ -125,12 +178,23 @@ public class ThrottleJobProperty extends JobProperty<AbstractProject<?,?>> {
     public static final class CategoryConfiguration {
         private String categoryName;
         private String categoryType;
+        /**
+         * How many units of the category's capacity a build of this project takes up.
+         */
+        private Integer weight;
 
         @DataBoundConstructor
         public CategoryConfiguration(String categoryName,
-                                             String categoryType) {
+                                             String categoryType,
+                                             Integer weight) {
             this.categoryName = categoryName;
             this.categoryType = categoryType;
+            this.weight = weight == null || weight < 1 ? 1 : weight;
+        }
+
+        public CategoryConfiguration(String categoryName,
+                                     String categoryType) {
+            this(categoryName, categoryType, null);
         }
 
         public String getCategoryName() {
@@ -140,15 +204,35 @@ public class ThrottleJobProperty extends JobProperty<AbstractProject<?,?>> {
         public String getCategoryType() {
             return categoryType;
         }
+
+        public Integer getWeight() {
+            if (weight == null)
+                weight = 1;
+
+            return weight;
+        }
     }
     @Extension
     public static final class DescriptorImpl extends JobPropertyDescriptor {
-        private List<ThrottleCategory> categories;
+        private volatile List<ThrottleCategory> categories;
+
+        /**
+         * Lookup table for {@link #getCategoryByName(String)}. Never modified in place,
+         * only swapped for a new one whenever the category list is replaced.
+         */
+        private transient volatile Map<String, ThrottleCategory> categoriesByName =
+            Collections.emptyMap();
         
         public DescriptorImpl() {
             super(ThrottleJobProperty.class);
             load();
         }
+
+        @Override
+        public synchronized void load() {
+            super.load();
+            setCategories(categories);
+        }
         
         @Override
         public String getDisplayName() {
@@ -162,8 +246,16 @@ public class ThrottleJobProperty extends JobProperty<AbstractProject<?,?>> {
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+            JSONArray before = ThrottleConfigJson.toJson(getCategories());
             req.bindJSON(this, formData);
+            // Nothing to write (or recount) if the categories came back the same.
+            if (ThrottleConfigJson.toJson(getCategories()).equals(before)) {
+                return true;
+            }
             save();
+            // Running builds count in their categories' parents as of when they started.
+            ThrottleRunCounters.get().reconcile();
+            ThrottleDecisionContext.invalidate();
             return true;
         }
 
@@ -193,29 +285,117 @@ public class ThrottleJobProperty extends JobProperty<AbstractProject<?,?>> {
             return checkNullOrInt(value);
         }
 
-        
-        public ThrottleCategory getCategoryByName(String categoryName) {
-            ThrottleCategory category = null;
-            
-            for (ThrottleCategory tc : categories) {
-                if (tc.getCategoryName().equals(categoryName)) {
-                    category = tc;
+        public FormValidation doCheckMaxWriterWait(@QueryParameter String value) {
+            return checkNullOrInt(value);
+        }
+
+        public FormValidation doCheckRateLimitStarts(@QueryParameter String value) {
+            return checkNullOrInt(value);
+        }
+
+        public FormValidation doCheckRateLimitInterval(@QueryParameter String value) {
+            return checkNullOrPositiveInt(value);
+        }
+
+        public FormValidation doCheckRateLimitBurst(@QueryParameter String value) {
+            return checkNullOrPositiveInt(value);
+        }
+
+        public FormValidation doCheckMinimum(@QueryParameter String value) {
+            return checkNullOrPositiveInt(value);
+        }
+
+        public FormValidation doCheckMaximum(@QueryParameter String value, @QueryParameter String minimum) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            FormValidation v = FormValidation.validateNonNegativeInteger(value);
+            if (v.kind != FormValidation.Kind.OK) {
+                return v;
+            }
+            int max = Integer.parseInt(value.trim());
+            try {
+                if (max > 0 && Util.fixEmptyAndTrim(minimum) != null && max < Integer.parseInt(minimum.trim())) {
+                    return FormValidation.error("The maximum can't be lower than the minimum.");
                 }
+            } catch (NumberFormatException e) {
+                // The minimum gets its own error.
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckLabelExpression(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                Label.parseExpression(value);
+                return FormValidation.ok();
+            } catch (ANTLRException e) {
+                return FormValidation.error(e, "Invalid label expression");
+            }
+        }
+
+        public FormValidation doCheckWeight(@QueryParameter String value) {
+            return checkNullOrPositiveInt(value);
+        }
+
+        private FormValidation checkNullOrPositiveInt(String value) {
+            // Nulls get the default.
+            if (Util.fixEmptyAndTrim(value) != null) {
+                return FormValidation.validatePositiveInteger(value);
+            }
+            else {
+                return FormValidation.ok();
             }
+        }
 
-            return category;
+        
+        public ThrottleCategory getCategoryByName(String categoryName) {
+            return categoriesByName.get(categoryName);
+        }
+
+        /**
+         * The current name to category table. A new instance is swapped in every
+         * time the categories change, so its identity doubles as a version.
+         */
+        Map<String, ThrottleCategory> getCategoryTable() {
+            return categoriesByName;
         }
 
-        public void setCategories(List<ThrottleCategory> categories) {
-            this.categories = categories;
+        /**
+         * Replaces the categories with a private copy of the given list, then swaps in
+         * a matching lookup table, so readers see either the old or the new set.
+         */
+        public synchronized void setCategories(List<ThrottleCategory> categories) {
+            List<ThrottleCategory> copy = categories == null
+                ? new ArrayList<ThrottleCategory>()
+                : new ArrayList<ThrottleCategory>(categories);
+            Map<String, ThrottleCategory> byName = new HashMap<String, ThrottleCategory>();
+            for (ThrottleCategory tc : copy) {
+                // Later duplicates win, as they always have.
+                byName.put(tc.getCategoryName(), tc);
+            }
+            this.categories = copy;
+            this.categoriesByName = Collections.unmodifiableMap(byName);
+
+            Map<String, List<String>> ancestors = new HashMap<String, List<String>>();
+            for (String name : byName.keySet()) {
+                List<String> chain = ThrottleCategoryIndex.ancestorsOf(name, byName);
+                if (!chain.isEmpty()) {
+                    ancestors.put(name, chain);
+                }
+            }
+            ThrottleCategoryIndex.get().setAncestors(ancestors);
         }
         
         public List<ThrottleCategory> getCategories() {
-            if (categories == null) {
-                categories = new ArrayList<ThrottleCategory>();
+            List<ThrottleCategory> l = categories;
+            if (l == null) {
+                return Collections.emptyList();
             }
 
-            return categories;
+            return Collections.unmodifiableList(l);
         }
 
         public ListBoxModel doFillCategoryItems() {
@@ -236,14 +416,78 @@ public class ThrottleJobProperty extends JobProperty<AbstractProject<?,?>> {
         private Integer maxConcurrentPerNode;
         private Integer maxConcurrentTotal;
         private String categoryName;
+        /**
+         * How spare capacity is shared among waiting members: "none" (first come),
+         * "roundRobin" or "fairShare".
+         */
+        private String fairness;
+        /**
+         * Hold back new non-writer builds while a writer of this category waits for
+         * nothing but the running readers, for at most {@link #maxWriterWait} seconds.
+         */
+        private boolean writerPreference;
+        /** 0 for {@link ThrottlePolicy#DEFAULT_MAX_WRITER_WAIT_MILLIS}. */
+        private Integer maxWriterWait;
+        /**
+         * Per node limits that replace {@link #maxConcurrentPerNode} on matching nodes;
+         * the first match wins.
+         */
+        private List<NodeLimit> nodeLimits;
+        /**
+         * At most {@link #rateLimitStarts} builds start per {@link #rateLimitInterval}
+         * seconds, {@link #rateLimitBurst} of them back to back; 0 starts means no limit.
+         */
+        private Integer rateLimitStarts;
+        private Integer rateLimitInterval;
+        private Integer rateLimitBurst;
+        /**
+         * The category this one is part of: builds counted in this category also count
+         * in the parent, the parent's parent, and so on.
+         */
+        private String parentCategoryName;
+        /** When set, the per node limit follows node health within these bounds. */
+        private AdaptiveLimit adaptiveLimit;
+
+        /**
+         * Effective per node limit by node name, executor count and label string,
+         * so the label expressions are only evaluated again when a node changes.
+         * Dropped whenever {@link #nodesChanged()} is called, which also picks up
+         * dynamic labels the label string doesn't show.
+         */
+        private transient volatile ConcurrentHashMap<String, Integer> limitsByNode;
+        private transient volatile long limitsEpoch;
         
         @DataBoundConstructor
         public ThrottleCategory(String categoryName,
                                 Integer maxConcurrentPerNode,
-                                Integer maxConcurrentTotal) {
+                                Integer maxConcurrentTotal,
+                                String fairness,
+                                boolean writerPreference,
+                                Integer maxWriterWait,
+                                List<NodeLimit> nodeLimits,
+                                Integer rateLimitStarts,
+                                Integer rateLimitInterval,
+                                Integer rateLimitBurst,
+                                String parentCategoryName,
+                                AdaptiveLimit adaptiveLimit) {
             this.maxConcurrentPerNode = maxConcurrentPerNode == null ? 0 : maxConcurrentPerNode;
             this.maxConcurrentTotal = maxConcurrentTotal == null ? 0 : maxConcurrentTotal;
             this.categoryName = categoryName;
+            this.fairness = fairness;
+            this.writerPreference = writerPreference;
+            this.maxWriterWait = maxWriterWait == null ? 0 : maxWriterWait;
+            this.nodeLimits = nodeLimits;
+            this.rateLimitStarts = rateLimitStarts == null ? 0 : rateLimitStarts;
+            this.rateLimitInterval = rateLimitInterval == null || rateLimitInterval < 1 ? 60 : rateLimitInterval;
+            this.rateLimitBurst = rateLimitBurst == null || rateLimitBurst < 1 ? 1 : rateLimitBurst;
+            this.parentCategoryName = Util.fixEmptyAndTrim(parentCategoryName);
+            this.adaptiveLimit = adaptiveLimit;
+        }
+
+        public ThrottleCategory(String categoryName,
+                                Integer maxConcurrentPerNode,
+                                Integer maxConcurrentTotal) {
+            this(categoryName, maxConcurrentPerNode, maxConcurrentTotal, null, false, null, null, null, null, null, null, null);
         }
         
         public Integer getMaxConcurrentPerNode() {
@@ -263,6 +507,277 @@ public class ThrottleJobProperty extends JobProperty<AbstractProject<?,?>> {
         public String getCategoryName() {
             return categoryName;
         }
+
+        public String getFairness() {
+            return fairness == null ? "none" : fairness;
+        }
+
+        public boolean getWriterPreference() {
+            return writerPreference;
+        }
+
+        public Integer getMaxWriterWait() {
+            if (maxWriterWait == null)
+                maxWriterWait = 0;
+
+            return maxWriterWait;
+        }
+
+        public String getParentCategoryName() {
+            return parentCategoryName;
+        }
+
+        public AdaptiveLimit getAdaptiveLimit() {
+            return adaptiveLimit;
+        }
+
+        public Integer getRateLimitStarts() {
+            if (rateLimitStarts == null)
+                rateLimitStarts = 0;
+
+            return rateLimitStarts;
+        }
+
+        public Integer getRateLimitInterval() {
+            if (rateLimitInterval == null)
+                rateLimitInterval = 60;
+
+            return rateLimitInterval;
+        }
+
+        public Integer getRateLimitBurst() {
+            if (rateLimitBurst == null)
+                rateLimitBurst = 1;
+
+            return rateLimitBurst;
+        }
+
+        public List<NodeLimit> getNodeLimits() {
+            if (nodeLimits == null) {
+                return Collections.emptyList();
+            }
+
+            return Collections.unmodifiableList(nodeLimits);
+        }
+
+        /**
+         * The per node limit that applies on the given node: the first matching
+         * {@link NodeLimit}, or {@link #getMaxConcurrentPerNode()} if none matches.
+         */
+        public int getMaxConcurrentPerNode(Node node) {
+            if (nodeLimits == null || nodeLimits.isEmpty()) {
+                return getMaxConcurrentPerNode().intValue();
+            }
+
+            long epoch = NODES_EPOCH.get();
+            ConcurrentHashMap<String, Integer> cache = limitsByNode;
+            if (cache == null || limitsEpoch != epoch) {
+                cache = new ConcurrentHashMap<String, Integer>();
+                limitsByNode = cache;
+                limitsEpoch = epoch;
+            }
+            String key = node.getNodeName() + '\n' + node.getNumExecutors() + '\n' + node.getLabelString();
+            Integer limit = cache.get(key);
+            if (limit == null) {
+                // Nodes that come and go (clouds) would otherwise pile up here.
+                if (cache.size() >= MAX_CACHED_NODES) {
+                    cache.clear();
+                }
+                limit = computeMaxConcurrentPerNode(node);
+                cache.put(key, limit);
+            }
+            return limit.intValue();
+        }
+
+        private int computeMaxConcurrentPerNode(Node node) {
+            for (NodeLimit nodeLimit : nodeLimits) {
+                if (nodeLimit != null && nodeLimit.matches(node)) {
+                    return nodeLimit.getMaxConcurrentPerNode(node);
+                }
+            }
+            return getMaxConcurrentPerNode().intValue();
+        }
+
+        private static final int MAX_CACHED_NODES = 4096;
+    }
+
+    private static final AtomicLong NODES_EPOCH = new AtomicLong();
+
+    /**
+     * Drops the per node limits every category has worked out, for when nodes or
+     * their labels may have changed.
+     */
+    static void nodesChanged() {
+        NODES_EPOCH.incrementAndGet();
+    }
+
+    /** Drops the per node limits when nodes come, go or are reconfigured. */
+    @Extension
+    public static final class NodesListener extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            nodesChanged();
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            nodesChanged();
+        }
+
+        @Override
+        public void onConfigurationChange() {
+            nodesChanged();
+        }
+    }
+
+    /**
+     * Drops the per node limits every minute, so dynamic labels (which change
+     * without any configuration change) are picked up outside the queue loop.
+     */
+    @Extension
+    public static final class LabelRefresher extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            nodesChanged();
+        }
+    }
+
+    /**
+     * A per node limit of a category for the nodes matching a label expression,
+     * optionally multiplied by each node's executor count.
+     */
+    public static final class NodeLimit {
+        private String labelExpression;
+        private Integer maxConcurrentPerNode;
+        private boolean perExecutor;
+
+        private transient volatile Label label;
+
+        @DataBoundConstructor
+        public NodeLimit(String labelExpression,
+                         Integer maxConcurrentPerNode,
+                         boolean perExecutor) {
+            this.labelExpression = Util.fixEmptyAndTrim(labelExpression);
+            this.maxConcurrentPerNode = maxConcurrentPerNode == null ? 0 : maxConcurrentPerNode;
+            this.perExecutor = perExecutor;
+        }
+
+        public String getLabelExpression() {
+            return labelExpression;
+        }
+
+        public Integer getMaxConcurrentPerNode() {
+            if (maxConcurrentPerNode == null)
+                maxConcurrentPerNode = 0;
+
+            return maxConcurrentPerNode;
+        }
+
+        public boolean getPerExecutor() {
+            return perExecutor;
+        }
+
+        /**
+         * Whether this limit applies to the given node. A blank expression matches
+         * every node, an invalid one none.
+         */
+        boolean matches(Node node) {
+            if (labelExpression == null) {
+                return true;
+            }
+            Label l = label;
+            if (l == null) {
+                try {
+                    l = Label.parseExpression(labelExpression);
+                } catch (ANTLRException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring invalid label expression " + labelExpression, e);
+                    return false;
+                }
+                label = l;
+            }
+            return l.matches(node.getAssignedLabels());
+        }
+
+        int getMaxConcurrentPerNode(Node node) {
+            int max = getMaxConcurrentPerNode().intValue();
+            if (perExecutor) {
+                return max * node.getNumExecutors();
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Bounds and health thresholds for a per node limit that adapts to how the node
+     * copes: halved while the node is unhealthy, raised by one while it is healthy
+     * and the limit is reached. See {@link ThrottleAdaptiveLimits}.
+     *
+     * The limit never goes above the maximum, nor above the category's static per node
+     * limit on the node where it has one; without either, above the node's executor count.
+     */
+    public static final class AdaptiveLimit {
+        private Integer minimum;
+        private Integer maximum;
+        private Integer minFreeMemoryMb;
+        private Integer minFreeDiskMb;
+        private Integer maxResponseTimeMillis;
+
+        @DataBoundConstructor
+        public AdaptiveLimit(Integer minimum,
+                             Integer maximum,
+                             Integer minFreeMemoryMb,
+                             Integer minFreeDiskMb,
+                             Integer maxResponseTimeMillis) {
+            this.minimum = minimum == null || minimum < 1 ? 1 : minimum;
+            this.maximum = maximum == null || maximum < 0 ? 0 : maximum;
+            this.minFreeMemoryMb = minFreeMemoryMb == null ? 512 : minFreeMemoryMb;
+            this.minFreeDiskMb = minFreeDiskMb == null ? 1024 : minFreeDiskMb;
+            this.maxResponseTimeMillis = maxResponseTimeMillis == null ? 5000 : maxResponseTimeMillis;
+        }
+
+        public Integer getMinimum() {
+            return minimum;
+        }
+
+        /** 0 if there is none. */
+        public Integer getMaximum() {
+            return maximum;
+        }
+
+        /**
+         * The highest the limit may go on the node, given the category's static per node
+         * limit there (0 if none). Never below the minimum.
+         */
+        int ceiling(int staticLimit, Node node) {
+            int ceiling = maximum.intValue() > 0 ? maximum.intValue() : Integer.MAX_VALUE;
+            if (staticLimit > 0) {
+                ceiling = Math.min(ceiling, staticLimit);
+            }
+            else if (maximum.intValue() <= 0) {
+                ceiling = node.getNumExecutors();
+            }
+            return Math.max(minimum.intValue(), ceiling);
+        }
+
+        /** Free physical memory below which the node counts as unhealthy; 0 to ignore. */
+        public Integer getMinFreeMemoryMb() {
+            return minFreeMemoryMb;
+        }
+
+        /** Free disk space in the workspace below which the node counts as unhealthy; 0 to ignore. */
+        public Integer getMinFreeDiskMb() {
+            return minFreeDiskMb;
+        }
+
+        /** Average response time above which the node counts as unhealthy; 0 to ignore. */
+        public Integer getMaxResponseTimeMillis() {
+            return maxResponseTimeMillis;
+        }
     }
 
     private static Logger LOGGER =  Logger.getLogger(ThrottleJobProperty.class.getName());
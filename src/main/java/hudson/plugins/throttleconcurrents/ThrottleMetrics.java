@@ -0,0 +1,244 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the throttle dispatcher. Everything is
+ * in-memory and starts from zero when Hudson starts.
+ */
+public final class ThrottleMetrics {
+    private static final ThrottleMetrics INSTANCE = new ThrottleMetrics();
+
+    public static ThrottleMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Why a task was held back. The labels match the message keys of the blockage.
+     */
+    public enum Cause {
+        MAX_CAPACITY_ON_NODE("MaxCapacityOnNode"),
+        MAX_CAPACITY_TOTAL("MaxCapacityTotal"),
+        BUILD_PENDING("BuildPending"),
+        WRITER_LOCK("WriterLock"),
+        READER_LOCK("ReaderLock"),
+        FAIR_SHARE("FairShare"),
+        WRITER_PREFERRED("WriterPreferred"),
+        RATE_LIMITED("RateLimited");
+
+        private final String label;
+
+        Cause(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final Histogram canTake = new Histogram();
+    private final Histogram canRun = new Histogram();
+    private final AtomicLongArray blocked = new AtomicLongArray(Cause.values().length);
+    private final ConcurrentHashMap<String, CategoryStats> categories = new ConcurrentHashMap<String, CategoryStats>();
+    /** When each currently held back task was first blocked. */
+    private final ConcurrentHashMap<Task, Long> blockedSince = new ConcurrentHashMap<Task, Long>();
+
+    ThrottleMetrics() {
+    }
+
+    public Histogram getCanTake() {
+        return canTake;
+    }
+
+    public Histogram getCanRun() {
+        return canRun;
+    }
+
+    public long getBlocked(Cause cause) {
+        return blocked.get(cause.ordinal());
+    }
+
+    /**
+     * Per category statistics, sorted by category name.
+     */
+    public Map<String, CategoryStats> getCategories() {
+        return Collections.unmodifiableMap(new TreeMap<String, CategoryStats>(categories));
+    }
+
+    /**
+     * Counts a blocked decision; {@code category} is null when it wasn't down to a category.
+     */
+    void blocked(Cause cause, String category) {
+        blocked.incrementAndGet(cause.ordinal());
+        if (category != null) {
+            statsFor(category).blocked.incrementAndGet(cause.ordinal());
+        }
+    }
+
+    void taskBlocked(Task task) {
+        if (!blockedSince.containsKey(task)) {
+            blockedSince.putIfAbsent(task, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * The task got through; charge the time it spent blocked to its categories.
+     */
+    void taskAdmitted(Task task, String[] categoryNames) {
+        Long since = blockedSince.remove(task);
+        long waited = since == null ? 0 : Math.max(0, System.currentTimeMillis() - since);
+        for (String catNm : categoryNames) {
+            CategoryStats stats = statsFor(catNm);
+            stats.admitted.incrementAndGet();
+            stats.blockedMillis.addAndGet(waited);
+        }
+    }
+
+    void forget(Task task) {
+        blockedSince.remove(task);
+    }
+
+    /**
+     * Drops the tasks that left the queue while blocked, cancelled or deleted, so
+     * they never got to be admitted.
+     */
+    void sweep() {
+        if (blockedSince.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Set<Task> queued = new HashSet<Task>();
+        for (Queue.Item item : Hudson.getInstance().getQueue().getItems()) {
+            queued.add(item.task);
+        }
+        for (Map.Entry<Task, Long> e : blockedSince.entrySet()) {
+            // Tasks blocked after the queue was looked at may not be in it.
+            if (e.getValue().longValue() < now && !queued.contains(e.getKey())) {
+                blockedSince.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private CategoryStats statsFor(String category) {
+        CategoryStats stats = categories.get(category);
+        if (stats == null) {
+            stats = new CategoryStats();
+            CategoryStats prev = categories.putIfAbsent(category, stats);
+            if (prev != null) {
+                stats = prev;
+            }
+        }
+        return stats;
+    }
+
+    public static final class CategoryStats {
+        private final AtomicLongArray blocked = new AtomicLongArray(Cause.values().length);
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong blockedMillis = new AtomicLong();
+
+        public long getBlocked(Cause cause) {
+            return blocked.get(cause.ordinal());
+        }
+
+        /** Tasks of this category let through by the dispatcher. */
+        public long getAdmitted() {
+            return admitted.get();
+        }
+
+        /** Total time those tasks spent blocked before being let through. */
+        public long getBlockedMillis() {
+            return blockedMillis.get();
+        }
+    }
+
+    /**
+     * Lock-free latency histogram with power of two buckets, from under 1&micro;s
+     * to about a second, plus an overflow bucket.
+     */
+    public static final class Histogram {
+        /** Bucket {@code i < BUCKETS} counts calls under 2<sup>i</sup>&micro;s. */
+        public static final int BUCKETS = 21;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos) / 1000;
+            int b = 64 - Long.numberOfLeadingZeros(micros);
+            buckets.incrementAndGet(Math.min(b, BUCKETS));
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSumNanos() {
+            return sumNanos.get();
+        }
+
+        /** Calls that fell in bucket {@code i}; bucket {@link #BUCKETS} is the overflow. */
+        public long getBucket(int i) {
+            return buckets.get(i);
+        }
+
+        /** Upper bound of bucket {@code i} in microseconds. */
+        public static long getBucketBoundMicros(int i) {
+            return 1L << i;
+        }
+
+        /**
+         * Upper bound in microseconds of the bucket holding the given quantile,
+         * or -1 when nothing has been recorded or it fell in the overflow bucket.
+         */
+        public long getQuantileMicros(double q) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS + 1];
+            for (int i = 0; i <= BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return getBucketBoundMicros(i);
+                }
+            }
+            return -1;
+        }
+    }
+
+    @Extension
+    public static final class Sweeper extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            get().sweep();
+        }
+    }
+}
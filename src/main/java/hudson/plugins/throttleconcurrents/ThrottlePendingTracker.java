@@ -0,0 +1,170 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throttled tasks that may be pending launch, so that checking the many members of
+ * a category doesn't take the queue lock and scan its pending list for each one.
+ *
+ * A task gets a mark when the dispatcher lets it through and loses it when its build
+ * starts. Being let through on one node doesn't mean the task gets handed out: the
+ * core offers it every idle executor before the load balancer picks one, and another
+ * dispatcher may still refuse it. So a mark only counts once {@code Queue.isPending}
+ * has confirmed it; one just let through counts as not pending. Marks are checked in
+ * rounds, all of them under a single hold of the queue lock: when a task other than
+ * the last one let through is checked after an admission (the core has moved on to
+ * the next item, so the last one is pending by now if it ever will be), and otherwise
+ * at most once every {@link #CONFIRM_MILLIS}. Hudson 1.399 has no queue listener to
+ * say when a task becomes or stops being pending, so asking the queue can't be
+ * avoided altogether. A mark is dropped by the first round that finds it neither
+ * pending nor just let through. Tasks without a mark are never pending: anything the
+ * dispatcher throttles has to get past it first.
+ *
+ * The same rounds take a {@link ThrottleReservations reservation} for each task they
+ * find pending and release it for each one they don't, so only tasks actually handed
+ * out hold slots.
+ */
+public final class ThrottlePendingTracker {
+    private static final ThrottlePendingTracker INSTANCE = new ThrottlePendingTracker(ThrottleReservations.get(), null);
+
+    static final long CONFIRM_MILLIS =
+        Long.getLong(ThrottlePendingTracker.class.getName() + ".confirmMillis", 1000L);
+
+    public static ThrottlePendingTracker get() {
+        return INSTANCE;
+    }
+
+    private final ThrottleReservations reservations;
+    /** The queue to confirm against; null for Hudson's. */
+    private final Queue queue;
+    private final ConcurrentHashMap<Task, Mark> marks = new ConcurrentHashMap<Task, Mark>();
+    private final AtomicLong version = new AtomicLong();
+    /** When the last round of confirmations started. */
+    private volatile long confirmedAt;
+    /** The task let through last, if no round has run since. */
+    private volatile Task unconfirmed;
+
+    ThrottlePendingTracker(ThrottleReservations reservations, Queue queue) {
+        this.reservations = reservations;
+        this.queue = queue;
+    }
+
+    void admitted(Task task) {
+        long now = System.currentTimeMillis();
+        Mark m = marks.get(task);
+        if (m == null) {
+            m = new Mark();
+            Mark prev = marks.putIfAbsent(task, m);
+            if (prev != null) {
+                m = prev;
+            }
+        }
+        m.admittedAt = now;
+        // Not pending until a round says so, so no cached flag goes stale here.
+        unconfirmed = task;
+    }
+
+    void started(Task task) {
+        Mark m = marks.remove(task);
+        if (m != null && m.confirmed) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Bumped whenever a task starts or stops counting as pending, so cached pending
+     * flags can tell they are stale.
+     */
+    long version() {
+        return version.get();
+    }
+
+    public boolean isPending(Task task) {
+        if (!marks.containsKey(task)) {
+            return false;
+        }
+        confirmIfDue(task);
+        Mark m = marks.get(task);
+        return m != null && m.confirmed;
+    }
+
+    /**
+     * Runs a round of confirmations if one is due before deciding about {@code task}.
+     * Returns whether one ran.
+     */
+    boolean confirmIfDue(Task task) {
+        Task last = unconfirmed;
+        long now = System.currentTimeMillis();
+        if ((last != null && last != task) || now - confirmedAt >= CONFIRM_MILLIS) {
+            confirm(now);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Asks the queue about every task in here, reserves slots for the pending ones and
+     * releases those of the others, and drops the ones that aren't pending (any more)
+     * and weren't let through since the last round.
+     */
+    private void confirm(long now) {
+        confirmedAt = now;
+        unconfirmed = null;
+        if (marks.isEmpty()) {
+            return;
+        }
+        Queue queue = this.queue != null ? this.queue : Hudson.getInstance().getQueue();
+        // Queue.isPending locks the queue itself; this takes it once for the whole round.
+        synchronized (queue) {
+            for (Map.Entry<Task, Mark> e : marks.entrySet()) {
+                Mark m = e.getValue();
+                boolean pending = queue.isPending(e.getKey());
+                boolean changed = m.confirmed != pending;
+                m.confirmed = pending;
+                if (pending) {
+                    reservations.reserve(e.getKey());
+                }
+                else {
+                    reservations.release(e.getKey());
+                }
+                if (!pending && now - m.admittedAt >= CONFIRM_MILLIS) {
+                    marks.remove(e.getKey(), m);
+                }
+                if (changed) {
+                    version.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    void sweep() {
+        confirm(System.currentTimeMillis());
+    }
+
+    private static final class Mark {
+        volatile long admittedAt;
+        /** What the last round found. */
+        volatile boolean confirmed;
+    }
+
+    @Extension
+    public static final class Sweeper extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            get().sweep();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.Node;
+import hudson.model.Queue.Task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ThrottleJobProperty} compiled down to what the dispatcher needs, so the
+ * queue checks don't compare option strings or unbox limits on every call.
+ *
+ * Category limits live in the global configuration, which can change at any time.
+ * They are resolved against the descriptor's current category table and re-resolved
+ * only when that table is swapped for a new one.
+ */
+final class ThrottlePolicy {
+    enum Mode { NONE, PROJECT, CATEGORY }
+
+    enum Fairness {
+        NONE, ROUND_ROBIN, FAIR_SHARE;
+
+        static Fairness of(String fairness) {
+            if ("roundRobin".equals(fairness)) {
+                return ROUND_ROBIN;
+            }
+            if ("fairShare".equals(fairness)) {
+                return FAIR_SHARE;
+            }
+            return NONE;
+        }
+    }
+
+    /** How long readers are held back for a writer when its category doesn't say. */
+    static final long DEFAULT_MAX_WRITER_WAIT_MILLIS =
+        Long.getLong(ThrottlePolicy.class.getName() + ".defaultMaxWriterWaitMillis", 10 * 60 * 1000L);
+
+    final Mode mode;
+    final int maxConcurrentPerNode;
+    final int maxConcurrentTotal;
+    /** Category names in configuration order, blank ones dropped. */
+    final String[] categoryNames;
+    final BitSet writers;
+    final BitSet readers;
+    /** Capacity units a build takes up in each category. */
+    final int[] weights;
+    /** Throttle the configurations of a matrix project rather than its parent build. */
+    final boolean matrixConfigurations;
+
+    private volatile Resolved resolved;
+
+    ThrottlePolicy(String throttleOption,
+                   int maxConcurrentPerNode,
+                   int maxConcurrentTotal,
+                   List<ThrottleJobProperty.CategoryConfiguration> categoryConfigurations,
+                   boolean matrixConfigurations) {
+        if ("project".equals(throttleOption)) {
+            mode = Mode.PROJECT;
+        }
+        else if ("category".equals(throttleOption)) {
+            mode = Mode.CATEGORY;
+        }
+        else {
+            mode = Mode.NONE;
+        }
+        this.maxConcurrentPerNode = maxConcurrentPerNode;
+        this.maxConcurrentTotal = maxConcurrentTotal;
+        this.matrixConfigurations = matrixConfigurations;
+
+        int n = 0;
+        if (categoryConfigurations != null) {
+            for (ThrottleJobProperty.CategoryConfiguration catCfg : categoryConfigurations) {
+                if (isValid(catCfg)) {
+                    n++;
+                }
+            }
+        }
+        categoryNames = new String[n];
+        writers = new BitSet(n);
+        readers = new BitSet(n);
+        weights = new int[n];
+        if (n > 0) {
+            int i = 0;
+            for (ThrottleJobProperty.CategoryConfiguration catCfg : categoryConfigurations) {
+                if (!isValid(catCfg)) {
+                    continue;
+                }
+                categoryNames[i] = catCfg.getCategoryName();
+                weights[i] = catCfg.getWeight().intValue();
+                if ("writer".equals(catCfg.getCategoryType())) {
+                    writers.set(i);
+                }
+                else if ("reader".equals(catCfg.getCategoryType())) {
+                    readers.set(i);
+                }
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Whether this policy applies to the given task, which is either the project it
+     * belongs to or one of that project's matrix configurations.
+     */
+    boolean throttles(Task task) {
+        if (task instanceof MatrixConfiguration) {
+            return matrixConfigurations;
+        }
+        return !(matrixConfigurations && task instanceof MatrixProject);
+    }
+
+    /**
+     * The project a task is throttled and counted as: matrix configurations count
+     * as their parent.
+     */
+    static Task accountedTask(Task task) {
+        if (task instanceof MatrixConfiguration) {
+            return ((MatrixConfiguration) task).getParent();
+        }
+        return task;
+    }
+
+    private static boolean isValid(ThrottleJobProperty.CategoryConfiguration catCfg) {
+        return catCfg != null && catCfg.getCategoryName() != null && !catCfg.getCategoryName().equals("");
+    }
+
+    /**
+     * The categories of this policy, resolved against the given category table.
+     */
+    Resolved resolve(Map<String, ThrottleJobProperty.ThrottleCategory> table) {
+        Resolved r = resolved;
+        if (r == null || r.table != table) {
+            r = new Resolved(table, categoryNames, weights, writers);
+            resolved = r;
+        }
+        return r;
+    }
+
+    /**
+     * Category references and limits, index-aligned with {@link ThrottlePolicy#categoryNames}.
+     * A {@code null} category means it isn't (or is no longer) defined globally.
+     */
+    static final class Resolved {
+        final Map<String, ThrottleJobProperty.ThrottleCategory> table;
+        final ThrottleJobProperty.ThrottleCategory[] categories;
+        final int[] maxConcurrentPerNode;
+        final int[] maxConcurrentTotal;
+        final Fairness[] fairness;
+        final boolean[] writerPreference;
+        final long[] maxWriterWaitMillis;
+        /** The categories the project writes to that give writers preference. */
+        final BitSet preferredWrites;
+        /**
+         * Whether the category has per node overrides or an adaptive limit, i.e. its per
+         * node limit depends on the node.
+         */
+        final boolean[] nodeLimits;
+        /**
+         * The category and the ones nested in it, whose pending members hold back the
+         * project, since per node limits can't count builds before they start.
+         */
+        final String[][] subtrees;
+        /** Rate limit as a GCRA emission interval and burst tolerance; 0 emission means no limit. */
+        final long[] rateEmissionNanos;
+        final long[] rateToleranceNanos;
+        /**
+         * Parent categories of the above that the project isn't directly in, with the
+         * slots it takes in each; only their capacity limits apply.
+         */
+        final String[] ancestorNames;
+        final ThrottleJobProperty.ThrottleCategory[] ancestors;
+        final int[] ancestorWeights;
+        final int[] ancestorMaxConcurrentTotal;
+        /** Like {@link #subtrees}, for the ancestors. */
+        final String[][] ancestorSubtrees;
+
+        private Resolved(Map<String, ThrottleJobProperty.ThrottleCategory> table, String[] names, int[] weights,
+                         BitSet writers) {
+            this.table = table;
+            categories = new ThrottleJobProperty.ThrottleCategory[names.length];
+            maxConcurrentPerNode = new int[names.length];
+            maxConcurrentTotal = new int[names.length];
+            fairness = new Fairness[names.length];
+            writerPreference = new boolean[names.length];
+            maxWriterWaitMillis = new long[names.length];
+            nodeLimits = new boolean[names.length];
+            rateEmissionNanos = new long[names.length];
+            rateToleranceNanos = new long[names.length];
+            subtrees = new String[names.length][];
+            preferredWrites = new BitSet(names.length);
+            for (int i = 0; i < names.length; i++) {
+                ThrottleJobProperty.ThrottleCategory category = table.get(names[i]);
+                categories[i] = category;
+                subtrees[i] = subtree(names[i], table);
+                fairness[i] = Fairness.NONE;
+                if (category != null) {
+                    fairness[i] = Fairness.of(category.getFairness());
+                    writerPreference[i] = category.getWriterPreference();
+                    if (writerPreference[i] && writers.get(i)) {
+                        preferredWrites.set(i);
+                    }
+                    int maxWriterWait = category.getMaxWriterWait().intValue();
+                    maxWriterWaitMillis[i] = maxWriterWait > 0 ? maxWriterWait * 1000L : DEFAULT_MAX_WRITER_WAIT_MILLIS;
+                    maxConcurrentPerNode[i] = category.getMaxConcurrentPerNode().intValue();
+                    maxConcurrentTotal[i] = category.getMaxConcurrentTotal().intValue();
+                    nodeLimits[i] = !category.getNodeLimits().isEmpty() || category.getAdaptiveLimit() != null;
+                    int starts = category.getRateLimitStarts().intValue();
+                    if (starts > 0) {
+                        rateEmissionNanos[i] = category.getRateLimitInterval().intValue() * 1000000000L / starts;
+                        rateToleranceNanos[i] = (category.getRateLimitBurst().intValue() - 1) * rateEmissionNanos[i];
+                    }
+                }
+            }
+
+            List<String> ancestorList = new ArrayList<String>();
+            List<Integer> weightList = new ArrayList<Integer>();
+            List<String> direct = Arrays.asList(names);
+            for (int i = 0; i < names.length; i++) {
+                for (String ancestor : ThrottleCategoryIndex.ancestorsOf(names[i], table)) {
+                    if (direct.contains(ancestor)) {
+                        continue;
+                    }
+                    // Reached through several direct categories: the heaviest one counts.
+                    int a = ancestorList.indexOf(ancestor);
+                    if (a < 0) {
+                        ancestorList.add(ancestor);
+                        weightList.add(weights[i]);
+                    }
+                    else if (weights[i] > weightList.get(a)) {
+                        weightList.set(a, weights[i]);
+                    }
+                }
+            }
+            ancestorNames = ancestorList.toArray(new String[ancestorList.size()]);
+            ancestors = new ThrottleJobProperty.ThrottleCategory[ancestorNames.length];
+            ancestorWeights = new int[ancestorNames.length];
+            ancestorMaxConcurrentTotal = new int[ancestorNames.length];
+            ancestorSubtrees = new String[ancestorNames.length][];
+            for (int a = 0; a < ancestorNames.length; a++) {
+                ancestors[a] = table.get(ancestorNames[a]);
+                ancestorSubtrees[a] = subtree(ancestorNames[a], table);
+                ancestorWeights[a] = weightList.get(a);
+                ancestorMaxConcurrentTotal[a] = ancestors[a].getMaxConcurrentTotal().intValue();
+            }
+        }
+
+        private static String[] subtree(String category, Map<String, ThrottleJobProperty.ThrottleCategory> table) {
+            List<String> l = ThrottleCategoryIndex.subtreeOf(category, table);
+            return l.toArray(new String[l.size()]);
+        }
+
+        /**
+         * The per node limit of category {@code i} on the given node.
+         */
+        int maxConcurrentPerNode(int i, Node node) {
+            if (nodeLimits[i]) {
+                return limitOn(categories[i], node);
+            }
+            return maxConcurrentPerNode[i];
+        }
+
+        /**
+         * The per node limit of ancestor {@code a} on the given node.
+         */
+        int ancestorMaxConcurrentPerNode(int a, Node node) {
+            return limitOn(ancestors[a], node);
+        }
+
+        private static int limitOn(ThrottleJobProperty.ThrottleCategory category, Node node) {
+            int limit = category.getMaxConcurrentPerNode(node);
+            if (category.getAdaptiveLimit() != null) {
+                limit = ThrottleAdaptiveLimits.get().limit(category.getCategoryName(), node,
+                                                           limit, category.getAdaptiveLimit());
+            }
+            return limit;
+        }
+    }
+}
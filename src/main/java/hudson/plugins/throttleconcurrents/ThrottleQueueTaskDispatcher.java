@@ -2,83 +2,111 @@ package hudson.plugins.throttleconcurrents;
 
 import hudson.Extension;
 import hudson.matrix.MatrixConfiguration;
-import hudson.matrix.MatrixProject;
-import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.Computer;
-import hudson.model.Executor;
-import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.Queue.Task;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
 
+import org.jvnet.localizer.Localizable;
+
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
 
 @Extension
 public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
 
     @Override
     public CauseOfBlockage canTake(Node node, Task task) {
-        if (task instanceof MatrixConfiguration) {
-            return null;
+        long start = System.nanoTime();
+        try {
+            return doCanTake(node, task);
+        } finally {
+            metrics().getCanTake().record(System.nanoTime() - start);
         }
-            
+    }
+
+    private CauseOfBlockage doCanTake(Node node, Task task) {
         ThrottleJobProperty tjp = getThrottleJobProperty(task);
         if (tjp!=null && tjp.getThrottleEnabled()) {
-            CauseOfBlockage cause = canRun(task, tjp);
-            if (cause != null) return cause;
+            ThrottlePolicy policy = tjp.getPolicy();
+            // Matrix configurations only when the parent asks for it, and then not the parent itself.
+            if (!policy.throttles(task)) {
+                return null;
+            }
+            ThrottleDecisionContext ctx = decisionContext(task);
+            CauseOfBlockage cause = canRun(task, policy, ctx);
+            if (cause == null) {
+                cause = canTakeOnNode(node, task, policy, ctx);
+            }
+            if (cause != null) {
+                ctx.metrics().taskBlocked(task);
+                return cause;
+            }
+            ctx.metrics().taskAdmitted(task, policy.categoryNames);
+            // The core offers the task every idle executor before the load balancer picks
+            // one, and another dispatcher may still refuse it, so this doesn't mean it gets
+            // handed out. The tracker reserves its slots once the queue says it is pending.
+            ctx.pendingTracker().admitted(task);
+        }
+
+        return null;
+    }
 
-            if (tjp.getThrottleOption().equals("project")) {
-                if (tjp.getMaxConcurrentPerNode().intValue() > 0) {
-                    int maxConcurrentPerNode = tjp.getMaxConcurrentPerNode().intValue();
-                    int runCount = buildsOfProjectOnNode(node, task);
-                    
-                    // This would mean that there are as many or more builds currently running than are allowed.
-                    if (runCount >= maxConcurrentPerNode) {
-                        return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount));
+    private CauseOfBlockage canTakeOnNode(Node node, Task task, ThrottlePolicy policy, ThrottleDecisionContext ctx) {
+        // Reservations don't count on any node, so there is none of its own to leave out here.
+        if (policy.mode == ThrottlePolicy.Mode.PROJECT) {
+            if (policy.maxConcurrentPerNode > 0) {
+                int runCount = ctx.runningOnNode(ThrottlePolicy.accountedTask(task), node.getNodeName());
+
+                // This would mean that there are as many or more builds currently running than are allowed.
+                if (runCount >= policy.maxConcurrentPerNode) {
+                    Object hint = ctx.waitHint(null, ThrottlePolicy.accountedTask(task), node.getNodeName(),
+                                               runCount - policy.maxConcurrentPerNode + 1);
+                    return blocked(ctx, ThrottleMetrics.Cause.MAX_CAPACITY_ON_NODE, null,
+                                        Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount, hint));
+                }
+            }
+        }
+        else if (policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+            // If the project is in one or more categories...
+            ThrottlePolicy.Resolved resolved = policy.resolve(ctx.getCategoryTable());
+            for (int i = 0; i < policy.categoryNames.length; i++) {
+                // Skip categories that aren't defined (any more), or have no limit on this node
+                if (resolved.categories[i] == null) {
+                    continue;
+                }
+                int maxConcurrentPerNode = resolved.maxConcurrentPerNode(i, node);
+                if (maxConcurrentPerNode > 0) {
+                    String catNm = policy.categoryNames[i];
+                    if (isPending(ctx, resolved.subtrees[i], task)) {
+                        return blocked(ctx, ThrottleMetrics.Cause.BUILD_PENDING, catNm,
+                                            Messages._ThrottleQueueTaskDispatcher_BuildPending());
+                    }
+                    int runCount = ctx.categoryRunningOnNode(catNm, node.getNodeName());
+                    // This would mean that there isn't enough capacity left on the node for this build.
+                    CauseOfBlockage cause = overOnNode(ctx, catNm, node, runCount, policy.weights[i], maxConcurrentPerNode);
+                    if (cause != null) {
+                        return cause;
                     }
                 }
             }
-            else if (tjp.getThrottleOption().equals("category")) {
-                // If the project is in one or more categories...
-                if (tjp.getCategoryConfigurations() != null && !tjp.getCategoryConfigurations().isEmpty()) {
-                    for (ThrottleJobProperty.CategoryConfiguration catCfg : tjp.getCategoryConfigurations()) {
-                        // Quick check that catNm itself is a real string.
-                        if (catCfg != null && catCfg.getCategoryName() != null && !catCfg.getCategoryName().equals("")) {
-                            String catNm = catCfg.getCategoryName();
-                            List<AbstractProject<?,?>> categoryProjects = getCategoryProjects(catNm);
-                            
-                            ThrottleJobProperty.ThrottleCategory category =
-                                ((ThrottleJobProperty.DescriptorImpl)tjp.getDescriptor()).getCategoryByName(catNm);
-                            
-                            // Double check category itself isn't null
-                            if (category != null) {
-                                // Max concurrent per node for category
-                                if (category.getMaxConcurrentPerNode().intValue() > 0) {
-                                    int maxConcurrentPerNode = category.getMaxConcurrentPerNode().intValue();
-                                    int runCount = 0;
-                                    
-                                    for (AbstractProject<?,?> catProj : categoryProjects) {
-                                        if (Hudson.getInstance().getQueue().isPending(catProj)) {
-                                            return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                                        }
-                                        runCount += buildsOfProjectOnNode(node, catProj);
-                                    }
-                                    // This would mean that there are as many or more builds currently running than are allowed.
-                                    if (runCount >= maxConcurrentPerNode) {
-                                        return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount));
-                                    }
-                                }
-                            }
-                        }
+            // Then the categories those are nested in.
+            for (int a = 0; a < resolved.ancestorNames.length; a++) {
+                int maxConcurrentPerNode = resolved.ancestorMaxConcurrentPerNode(a, node);
+                if (maxConcurrentPerNode > 0) {
+                    String catNm = resolved.ancestorNames[a];
+                    // Builds of sibling categories count here too, but only once they start.
+                    if (isPending(ctx, resolved.ancestorSubtrees[a], task)) {
+                        return blocked(ctx, ThrottleMetrics.Cause.BUILD_PENDING, catNm,
+                                       Messages._ThrottleQueueTaskDispatcher_BuildPending());
+                    }
+                    int runCount = ctx.categoryRunningOnNode(catNm, node.getNodeName());
+                    CauseOfBlockage cause = overOnNode(ctx, catNm, node, runCount, resolved.ancestorWeights[a], maxConcurrentPerNode);
+                    if (cause != null) {
+                        return cause;
                     }
                 }
             }
@@ -87,179 +115,283 @@ public class ThrottleQueueTaskDispatcher extends QueueTaskDispatcher {
         return null;
     }
 
-    // @Override on jenkins 4.127+ , but still compatible with 1.399
+    // @Override on jenkins 1.427+ , but still compatible with 1.399
     public CauseOfBlockage canRun(Queue.Item item) {
         ThrottleJobProperty tjp = getThrottleJobProperty(item.task);
         if (tjp!=null && tjp.getThrottleEnabled()) {
-            return canRun(item.task, tjp);
+            CauseOfBlockage cause = canRun(item.task, tjp);
+            if (cause != null) {
+                metrics().taskBlocked(item.task);
+            }
+            return cause;
         }
         return null;
     }
 
     public CauseOfBlockage canRun(Task task, ThrottleJobProperty tjp) {
-        if (task instanceof MatrixConfiguration) {
+        ThrottlePolicy policy = tjp.getPolicy();
+        if (!policy.throttles(task)) {
             return null;
         }
-        if (Hudson.getInstance().getQueue().isPending(task)) {
-            return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
+        long start = System.nanoTime();
+        try {
+            return canRun(task, policy, decisionContext(task));
+        } finally {
+            metrics().getCanRun().record(System.nanoTime() - start);
+        }
+    }
+
+    private CauseOfBlockage canRun(Task task, ThrottlePolicy policy, ThrottleDecisionContext ctx) {
+        if (policy.mode != ThrottlePolicy.Mode.CATEGORY) {
+            return canRun(task, policy, ctx, null);
+        }
+        BitSet preferred = policy.resolve(ctx.getCategoryTable()).preferredWrites;
+        if (preferred.isEmpty()) {
+            return canRun(task, policy, ctx, null);
+        }
+        // Readers only make way for a writer that nothing but their running builds holds
+        // back, so look past those to see whether anything else does.
+        List<String> byReaders = new ArrayList<String>(1);
+        CauseOfBlockage cause = canRun(task, policy, ctx, byReaders);
+        if (cause != null) {
+            byReaders.clear();
+        }
+        ctx.fairShare().writerBlocked(ThrottlePolicy.accountedTask(task), policy.categoryNames,
+                                      preferred, byReaders);
+        if (cause == null && !byReaders.isEmpty()) {
+            return blocked(ctx, ThrottleMetrics.Cause.WRITER_LOCK, byReaders.get(0),
+                                Messages._ThrottleQueueTaskDispatcher_WriterLock());
+        }
+        return cause;
+    }
+
+    /**
+     * @param byReaders if not null, collects the categories giving writers preference where
+     *     running readers hold the task back as a writer, instead of returning right away.
+     */
+    private CauseOfBlockage canRun(Task task, ThrottlePolicy policy, ThrottleDecisionContext ctx, List<String> byReaders) {
+        // Matrix configurations are throttled and counted as their parent project.
+        Task project = ThrottlePolicy.accountedTask(task);
+        // Its own pending flag doesn't count: being let through on one node doesn't mean it
+        // was handed out, and the core offers it every idle executor before picking one.
+        if (project != task && ctx.isConfigurationPending(project, task)) {
+            return blocked(ctx, ThrottleMetrics.Cause.BUILD_PENDING, null,
+                                Messages._ThrottleQueueTaskDispatcher_BuildPending());
         }
-        if (tjp.getThrottleOption().equals("project")) {
-            if (tjp.getMaxConcurrentTotal().intValue() > 0) {
-                int maxConcurrentTotal = tjp.getMaxConcurrentTotal().intValue();
-                int totalRunCount = buildsOfProjectOnAllNodes(task);
-                
-                if (totalRunCount >= maxConcurrentTotal) {
-                    return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(totalRunCount));
+        // The slots the task already reserved for itself don't count against it.
+        ThrottleRunCounters.Entry own = ctx.ownReservation(task);
+        if (policy.mode == ThrottlePolicy.Mode.PROJECT) {
+            if (policy.maxConcurrentTotal > 0) {
+                int totalRunCount = ctx.running(project);
+                if (own != null) {
+                    totalRunCount--;
+                }
+
+                if (totalRunCount >= policy.maxConcurrentTotal) {
+                    Object hint = ctx.waitHint(null, project, null, totalRunCount - policy.maxConcurrentTotal + 1);
+                    return blocked(ctx, ThrottleMetrics.Cause.MAX_CAPACITY_TOTAL, null,
+                                        Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(totalRunCount, hint));
                 }
             }
         }
         // If the project is in one or more categories...
-        else if (tjp.getThrottleOption().equals("category")) {
-            if (tjp.getCategoryConfigurations() != null && !tjp.getCategoryConfigurations().isEmpty()) {
-                for (ThrottleJobProperty.CategoryConfiguration catCfg : tjp.getCategoryConfigurations()) {
-                    // Quick check that catNm itself is a real string.
-                    if (catCfg != null && catCfg.getCategoryName() != null && !catCfg.getCategoryName().equals("")) {
-                        String catNm = catCfg.getCategoryName();
-                        List<AbstractProject<?,?>> categoryProjects = getCategoryProjects(catNm);
-                        
-                        ThrottleJobProperty.ThrottleCategory category =
-                            ((ThrottleJobProperty.DescriptorImpl)tjp.getDescriptor()).getCategoryByName(catNm);
-                        
-                        // Double check category itself isn't null
-                        if (category != null) {
-                            if (category.getMaxConcurrentTotal().intValue() > 0) {
-                                int maxConcurrentTotal = category.getMaxConcurrentTotal().intValue();
-                                int totalRunCount = 0;
-                                boolean writer_locked = false;
-                                
-                                for (AbstractProject<?,?> catProj : categoryProjects) {
-                                    if (Hudson.getInstance().getQueue().isPending(catProj)) {
-                                        return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_BuildPending());
-                                    }
-                                    int running = buildsOfProjectOnAllNodes(catProj);
-                                    if (running > 0 && isCategoryWriter(catProj, catNm)) {
-                                        writer_locked = true;
-                                    }
-                                    totalRunCount += running;
-                                }
-                                
-                                if (totalRunCount >= maxConcurrentTotal) {
-                                    return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(totalRunCount));
-                                }
-                                else if (catCfg.getCategoryType().equals("writer") && writer_locked) {
-                                    return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_WriterLock());
-                                }
-                                else if (catCfg.getCategoryType().equals("writer") && totalRunCount > 0) {
-                                    return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_WriterLock());
-                                }
-                                else if (catCfg.getCategoryType().equals("reader") && writer_locked) {
-                                    return CauseOfBlockage.fromMessage(Messages._ThrottleQueueTaskDispatcher_ReaderLock());
-                                }
-                            }
-                            
+        else if (policy.mode == ThrottlePolicy.Mode.CATEGORY) {
+            ThrottlePolicy.Resolved resolved = policy.resolve(ctx.getCategoryTable());
+            for (int i = 0; i < policy.categoryNames.length; i++) {
+                int maxConcurrentTotal = resolved.maxConcurrentTotal[i];
+                // Double check category itself isn't null
+                if (resolved.categories[i] != null && maxConcurrentTotal > 0) {
+                    String catNm = policy.categoryNames[i];
+                    if (isPending(ctx, resolved.subtrees[i], task)) {
+                        return blocked(ctx, ThrottleMetrics.Cause.BUILD_PENDING, catNm,
+                                            Messages._ThrottleQueueTaskDispatcher_BuildPending());
+                    }
+                    int totalRunCount = ctx.categoryRunning(catNm);
+                    int writersRunning = ctx.categoryWritersRunning(catNm);
+                    if (own != null) {
+                        totalRunCount -= own.weightIn(catNm);
+                        writersRunning -= own.writersIn(catNm);
+                    }
+                    boolean writer_locked = writersRunning > 0;
+
+                    CauseOfBlockage cause = overTotal(ctx, catNm, totalRunCount, policy.weights[i], maxConcurrentTotal);
+                    if (cause != null) {
+                        return cause;
+                    }
+                    else if (policy.writers.get(i) && writer_locked) {
+                        return blocked(ctx, ThrottleMetrics.Cause.WRITER_LOCK, catNm,
+                                            Messages._ThrottleQueueTaskDispatcher_WriterLock());
+                    }
+                    else if (policy.writers.get(i) && totalRunCount > 0) {
+                        if (byReaders == null || !resolved.writerPreference[i]) {
+                            return blocked(ctx, ThrottleMetrics.Cause.WRITER_LOCK, catNm,
+                                                Messages._ThrottleQueueTaskDispatcher_WriterLock());
+                        }
+                        byReaders.add(catNm);
+                    }
+                    else if (policy.readers.get(i) && writer_locked) {
+                        return blocked(ctx, ThrottleMetrics.Cause.READER_LOCK, catNm,
+                                            Messages._ThrottleQueueTaskDispatcher_ReaderLock());
+                    }
+                    else if (resolved.writerPreference[i] && !policy.writers.get(i)) {
+                        // Let running builds drain so a writer waiting for just them gets its turn.
+                        Task writer = ctx.getPreferredWriter(catNm, resolved.maxWriterWaitMillis[i]);
+                        if (writer != null && writer != project) {
+                            return blocked(ctx, ThrottleMetrics.Cause.WRITER_PREFERRED, catNm,
+                                                Messages._ThrottleQueueTaskDispatcher_WriterPreferred(writer.getDisplayName(), catNm));
                         }
                     }
                 }
+                // Starts of a rate limited category must also conform to its rate.
+                if (resolved.categories[i] != null && resolved.rateEmissionNanos[i] > 0) {
+                    String catNm = policy.categoryNames[i];
+                    // A pending build hasn't taken its token yet.
+                    if (maxConcurrentTotal <= 0 && ctx.isCategoryPending(catNm, task)) {
+                        return blocked(ctx, ThrottleMetrics.Cause.BUILD_PENDING, catNm,
+                                            Messages._ThrottleQueueTaskDispatcher_BuildPending());
+                    }
+                    long delay = ctx.rateLimiter().delayNanos(catNm, resolved.rateToleranceNanos[i]);
+                    if (delay > 0) {
+                        ThrottleJobProperty.ThrottleCategory category = resolved.categories[i];
+                        return blocked(ctx, ThrottleMetrics.Cause.RATE_LIMITED, catNm,
+                                            Messages._ThrottleQueueTaskDispatcher_RateLimited(
+                                                catNm, category.getRateLimitStarts(), category.getRateLimitInterval(),
+                                                (delay + 999999999L) / 1000000000L));
+                    }
+                }
+                // There is room in the category; with a fairness mode, make sure it's our turn.
+                if (resolved.categories[i] != null && resolved.fairness[i] != ThrottlePolicy.Fairness.NONE) {
+                    String catNm = policy.categoryNames[i];
+                    Task first = ctx.fairShare().preferredOver(catNm, resolved.fairness[i], project,
+                                                               ctx.getQueuedMembers(catNm));
+                    if (first != null) {
+                        return blocked(ctx, ThrottleMetrics.Cause.FAIR_SHARE, catNm,
+                                            Messages._ThrottleQueueTaskDispatcher_FairShare(catNm, first.getDisplayName()));
+                    }
+                }
+            }
+            // The total limits of the categories those are nested in cover the whole subtree.
+            for (int a = 0; a < resolved.ancestorNames.length; a++) {
+                int maxConcurrentTotal = resolved.ancestorMaxConcurrentTotal[a];
+                if (maxConcurrentTotal > 0) {
+                    String catNm = resolved.ancestorNames[a];
+                    int totalRunCount = ctx.categoryRunning(catNm);
+                    if (own != null) {
+                        totalRunCount -= own.weightIn(catNm);
+                    }
+                    CauseOfBlockage cause = overTotal(ctx, catNm, totalRunCount, resolved.ancestorWeights[a], maxConcurrentTotal);
+                    if (cause != null) {
+                        return cause;
+                    }
+                }
             }
         }
 
         return null;
     }
 
-    private boolean isCategoryWriter(Task task, String categoryName) {
-        ThrottleJobProperty tjp = getThrottleJobProperty(task);
-
-        for (ThrottleJobProperty.CategoryConfiguration catCfg : tjp.getCategoryConfigurations()) {
-            if (catCfg.getCategoryName().equals(categoryName) && catCfg.getCategoryType().equals("writer")) {
+    /**
+     * Whether a member of any of the categories other than {@code self} is pending launch.
+     */
+    private static boolean isPending(ThrottleDecisionContext ctx, String[] categories, Task self) {
+        for (String catNm : categories) {
+            if (ctx.isCategoryPending(catNm, self)) {
                 return true;
             }
         }
-
         return false;
     }
 
-    private ThrottleJobProperty getThrottleJobProperty(Task task) {
-        if (task instanceof AbstractProject) {
-            AbstractProject<?,?> p = (AbstractProject<?,?>) task;
-            if (task instanceof MatrixConfiguration) {
-                p = (AbstractProject<?,?>)((MatrixConfiguration)task).getParent();
-            }
-            ThrottleJobProperty tjp = p.getProperty(ThrottleJobProperty.class);
-            return tjp;
-        }
-        return null;
+    /**
+     * Whether a build taking {@code weight} slots fits next to the ones in use. A build
+     * heavier than the whole limit may still run on its own rather than never.
+     */
+    private static boolean fits(int inUse, int weight, int limit) {
+        return inUse == 0 || inUse + weight <= limit;
     }
-    
-    private int buildsOfProjectOnNode(Node node, Task task) {
-        int runCount = 0;
-        LOGGER.fine("Checking for builds of " + task.getName() + " on node " + node.getDisplayName());
-        
-        // I think this'll be more reliable than job.getBuilds(), which seemed to not always get
-        // a build right after it was launched, for some reason.
-        for (Executor e : node.toComputer().getExecutors()) {
-            runCount += buildsOnExecutor(task, e);
-        }
-        if (task instanceof MatrixProject) {
-            for (Executor e : node.toComputer().getOneOffExecutors()) {
-                runCount += buildsOnExecutor(task, e);
-            }
+
+    /**
+     * Why a build taking {@code weight} slots of the category doesn't fit on the node,
+     * or null if it does.
+     */
+    private static CauseOfBlockage overOnNode(ThrottleDecisionContext ctx, String catNm, Node node, int runCount,
+                                              int weight, int maxConcurrentPerNode) {
+        if (fits(runCount, weight, maxConcurrentPerNode)) {
+            return null;
         }
-        
-        return runCount;
+        Object hint = ctx.waitHint(catNm, null, node.getNodeName(), needed(runCount, weight, maxConcurrentPerNode));
+        return blocked(ctx, ThrottleMetrics.Cause.MAX_CAPACITY_ON_NODE, catNm,
+                            weight == 1
+                            ? Messages._ThrottleQueueTaskDispatcher_MaxCapacityOnNode(runCount, hint)
+                            : Messages._ThrottleQueueTaskDispatcher_MaxWeightOnNode(weight, runCount, maxConcurrentPerNode, hint));
     }
 
-    private int buildsOfProjectOnAllNodes(Task task) {
-        int totalRunCount = 0;
-        
-        for (Computer c : Hudson.getInstance().getComputers()) {
-            for (Executor e : c.getExecutors()) {
-                totalRunCount += buildsOnExecutor(task, e);
-            }
-            
-            if (task instanceof MatrixProject) {
-                for (Executor e : c.getOneOffExecutors()) {
-                    totalRunCount += buildsOnExecutor(task, e);
-                }
-            }
+    /**
+     * Why a build taking {@code weight} slots of the category doesn't fit under its
+     * total limit, or null if it does.
+     */
+    private static CauseOfBlockage overTotal(ThrottleDecisionContext ctx, String catNm, int totalRunCount,
+                                             int weight, int maxConcurrentTotal) {
+        if (fits(totalRunCount, weight, maxConcurrentTotal)) {
+            return null;
         }
+        Object hint = ctx.waitHint(catNm, null, null, needed(totalRunCount, weight, maxConcurrentTotal));
+        return blocked(ctx, ThrottleMetrics.Cause.MAX_CAPACITY_TOTAL, catNm,
+                            weight == 1
+                            ? Messages._ThrottleQueueTaskDispatcher_MaxCapacityTotal(totalRunCount, hint)
+                            : Messages._ThrottleQueueTaskDispatcher_MaxWeightTotal(weight, totalRunCount, maxConcurrentTotal, hint));
+    }
 
-        return totalRunCount;
+    /**
+     * Slots that have to free up before a build of the given weight {@link #fits}: all of
+     * them if it is heavier than the limit itself.
+     */
+    private static int needed(int inUse, int weight, int limit) {
+        return weight > limit ? inUse : inUse + weight - limit;
     }
 
-    private int buildsOnExecutor(Task task, Executor exec) {
-        int runCount = 0;
-        if (exec.getCurrentExecutable() != null
-            && exec.getCurrentExecutable().getParent() == task) {
-            runCount++;
-        }
+    private static CauseOfBlockage blocked(ThrottleDecisionContext ctx, ThrottleMetrics.Cause cause, String category,
+                                           Localizable message) {
+        ctx.metrics().blocked(cause, category);
+        return CauseOfBlockage.fromMessage(message);
+    }
 
-        return runCount;
+    /**
+     * Where the latencies of the calls are recorded; overridden by the benchmarks.
+     */
+    ThrottleMetrics metrics() {
+        return ThrottleMetrics.get();
     }
-        
-        
-    private List<AbstractProject<?,?>> getCategoryProjects(String category) {
-        List<AbstractProject<?,?>> categoryProjects = new ArrayList<AbstractProject<?,?>>();
 
-        if (category != null && !category.equals("")) {
-            for (AbstractProject<?,?> p : Hudson.getInstance().getAllItems(AbstractProject.class)) {
-                ThrottleJobProperty t = p.getProperty(ThrottleJobProperty.class);
-                
-                if (t!=null && t.getThrottleEnabled() && t.getCategoryConfigurations() != null) {
-                    for (ThrottleJobProperty.CategoryConfiguration catCfg : t.getCategoryConfigurations()) {
-                        String catNam = catCfg.getCategoryName();
-                        if (catNam != null && catNam.equals(category)) {
-                            categoryProjects.add(p);
-                        }
-                    }
-                }
-            }
-        }
-        
-        return categoryProjects;
+    /**
+     * The snapshot to decide against; overridden by the benchmarks.
+     */
+    ThrottleDecisionContext decisionContext() {
+        return ThrottleDecisionContext.get();
     }
 
-    private static final Logger LOGGER = Logger.getLogger(ThrottleQueueTaskDispatcher.class.getName());
+    /**
+     * The snapshot to decide about {@code task} against, once the pending tasks have
+     * been confirmed if that is due.
+     */
+    private ThrottleDecisionContext decisionContext(Task task) {
+        ThrottleDecisionContext ctx = decisionContext();
+        if (ctx.pendingTracker().confirmIfDue(task)) {
+            // Pending flags may have changed.
+            ctx = decisionContext();
+        }
+        return ctx;
+    }
 
+    private ThrottleJobProperty getThrottleJobProperty(Task task) {
+        if (task instanceof AbstractProject) {
+            AbstractProject<?,?> p = (AbstractProject<?,?>) task;
+            if (task instanceof MatrixConfiguration) {
+                p = (AbstractProject<?,?>)((MatrixConfiguration)task).getParent();
+            }
+            ThrottleJobProperty tjp = p.getProperty(ThrottleJobProperty.class);
+            return tjp;
+        }
+        return null;
+    }
 }
-                
-                    
\ No newline at end of file
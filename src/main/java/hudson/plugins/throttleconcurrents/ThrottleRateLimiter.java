@@ -0,0 +1,79 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.Hudson;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Start rate limits of categories, as token buckets in their GCRA form: one
+ * theoretical arrival time per category, pushed forward by one emission interval
+ * for every build that starts. A build may start once the clock is within the burst
+ * tolerance of it.
+ *
+ * Lock-free and in-memory only; every bucket starts full when Hudson starts.
+ */
+public final class ThrottleRateLimiter {
+    private static final ThrottleRateLimiter INSTANCE = new ThrottleRateLimiter();
+
+    public static ThrottleRateLimiter get() {
+        return INSTANCE;
+    }
+
+    /** Theoretical arrival time per category, in {@link System#nanoTime()} terms. */
+    private final ConcurrentHashMap<String, AtomicLong> arrivals = new ConcurrentHashMap<String, AtomicLong>();
+
+    ThrottleRateLimiter() {
+    }
+
+    /**
+     * How long until the category may start another build, in nanoseconds; 0 if now.
+     */
+    long delayNanos(String category, long toleranceNanos) {
+        AtomicLong tat = arrivals.get(category);
+        if (tat == null) {
+            return 0;
+        }
+        long delay = tat.get() - toleranceNanos - System.nanoTime();
+        return delay > 0 ? delay : 0;
+    }
+
+    /**
+     * Takes a token from each rate limited category of a build that just started.
+     */
+    void started(List<String> categories) {
+        if (categories.isEmpty()) {
+            return;
+        }
+        Map<String, ThrottleJobProperty.ThrottleCategory> table =
+            Hudson.getInstance().getDescriptorByType(ThrottleJobProperty.DescriptorImpl.class).getCategoryTable();
+        for (String catNm : categories) {
+            ThrottleJobProperty.ThrottleCategory category = table.get(catNm);
+            if (category != null && category.getRateLimitStarts().intValue() > 0) {
+                started(catNm, category.getRateLimitInterval().intValue() * 1000000000L
+                               / category.getRateLimitStarts().intValue());
+            }
+        }
+    }
+
+    void started(String category, long emissionNanos) {
+        AtomicLong tat = arrivals.get(category);
+        if (tat == null) {
+            tat = new AtomicLong(System.nanoTime());
+            AtomicLong prev = arrivals.putIfAbsent(category, tat);
+            if (prev != null) {
+                tat = prev;
+            }
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long t = tat.get();
+            long next = (t - now > 0 ? t : now) + emissionNanos;
+            if (tat.compareAndSet(t, next)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of reservations taken and released, one tab separated record per
+ * line: {@code +<TAB>task} or {@code -<TAB>task}, where task is the full name of the
+ * project. Compacted down to the live reservations when it gets long. A last line
+ * without its line end is a torn write: it is ignored, and cut off before anything
+ * is appended.
+ *
+ * Records are written by a background thread, a batch at a time, so that taking a
+ * reservation never waits for the disk while the queue is locked.
+ */
+final class ThrottleReservationJournal {
+    private static final int COMPACT_AFTER = 10000;
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+    private final File file;
+    private final ConcurrentLinkedQueue<String> unwritten = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private Writer out;
+    private volatile int records;
+
+    ThrottleReservationJournal(File dir) {
+        this.file = new File(dir, "reservations.log");
+    }
+
+    void reserved(String task) {
+        append("+\t" + task);
+    }
+
+    void released(String task) {
+        append("-\t" + task);
+    }
+
+    boolean isDue() {
+        return records >= COMPACT_AFTER;
+    }
+
+    /**
+     * The reservations still held according to the journal, by task name.
+     */
+    synchronized Set<String> read() {
+        flush();
+        Set<String> live = new LinkedHashSet<String>();
+        if (!file.exists()) {
+            return live;
+        }
+        BufferedReader r = null;
+        try {
+            long complete = completeLength();
+            r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            long read = 0;
+            while ((line = r.readLine()) != null) {
+                read += line.getBytes("UTF-8").length + 1;
+                if (read > complete) {
+                    break;
+                }
+                String[] f = line.split("\t", -1);
+                if (f.length != 2) {
+                    continue;
+                }
+                if (f[0].equals("+")) {
+                    live.add(f[1]);
+                }
+                else if (f[0].equals("-")) {
+                    live.remove(f[1]);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+        } finally {
+            closeQuietly(r);
+        }
+        return live;
+    }
+
+    /**
+     * Replaces the journal with just the given reservations, by task name, followed by
+     * the records not written yet; those may be newer than {@code live}.
+     */
+    synchronized void rewrite(Collection<String> live) {
+        closeQuietly(out);
+        out = null;
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = null;
+        try {
+            file.getParentFile().mkdirs();
+            w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            int n = 0;
+            for (String task : live) {
+                w.write("+\t" + task + "\n");
+                n++;
+            }
+            String record;
+            while ((record = unwritten.poll()) != null) {
+                w.write(record + "\n");
+                n++;
+            }
+            w.close();
+            w = null;
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Failed to rename " + tmp + " to " + file);
+            }
+            records = n;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to compact " + file, e);
+        } finally {
+            closeQuietly(w);
+        }
+    }
+
+    private void append(String record) {
+        unwritten.add(record);
+        if (scheduled.compareAndSet(false, true)) {
+            WRITER.execute(new Runnable() {
+                public void run() {
+                    scheduled.set(false);
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes out the records appended so far.
+     */
+    synchronized void flush() {
+        if (unwritten.isEmpty()) {
+            return;
+        }
+        try {
+            if (out == null) {
+                file.getParentFile().mkdirs();
+                if (file.exists() && completeLength() < file.length()) {
+                    // Otherwise the first record would be glued onto the torn one.
+                    RandomAccessFile f = new RandomAccessFile(file, "rw");
+                    try {
+                        f.setLength(completeLength());
+                    } finally {
+                        f.close();
+                    }
+                }
+                out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            }
+            String record;
+            while ((record = unwritten.poll()) != null) {
+                out.write(record + "\n");
+                records++;
+            }
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write to " + file, e);
+            closeQuietly(out);
+            out = null;
+        }
+    }
+
+    /**
+     * The length of the journal up to and including its last line end.
+     */
+    private long completeLength() throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            long length = f.length();
+            while (length > 0) {
+                f.seek(length - 1);
+                if (f.read() == '\n') {
+                    break;
+                }
+                length--;
+            }
+            return length;
+        } finally {
+            f.close();
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleReservationJournal.class.getName());
+}
@@ -0,0 +1,173 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Slot reservations of the tasks pending launch, kept in {@link ThrottleRunCounters}
+ * and journaled under {@code throttle-concurrents/} in the Hudson root directory, so
+ * they are replayed after a restart. {@link ThrottlePendingTracker} takes them as it
+ * confirms that tasks were handed out.
+ *
+ * A reservation is released when its build starts (the build's own count takes
+ * over), when the task is found not pending (any more), or when it has left the
+ * queue without starting. Replayed reservations are held for
+ * {@link #REPLAY_HOLD_MILLIS} while their task waits in the queue again, so that the
+ * builds that were about to start get their slots back first.
+ */
+public final class ThrottleReservations {
+    private static final ThrottleReservations INSTANCE = new ThrottleReservations(ThrottleRunCounters.get(), true);
+
+    static final long HOLD_MILLIS =
+        Long.getLong(ThrottleReservations.class.getName() + ".holdMillis", 10 * 1000L);
+    static final long REPLAY_HOLD_MILLIS =
+        Long.getLong(ThrottleReservations.class.getName() + ".replayHoldMillis", 5 * 60 * 1000L);
+
+    public static ThrottleReservations get() {
+        return INSTANCE;
+    }
+
+    private final ThrottleRunCounters counters;
+    private final boolean durable;
+    private volatile ThrottleReservationJournal journal;
+    /** Tasks with a reservation in the journal, by full name. */
+    private final ConcurrentHashMap<Task, String> journaled = new ConcurrentHashMap<Task, String>();
+
+    /**
+     * @param durable whether to journal reservations; benchmarks run without.
+     */
+    ThrottleReservations(ThrottleRunCounters counters, boolean durable) {
+        this.counters = counters;
+        this.durable = durable;
+    }
+
+    /**
+     * Returns whether a new reservation was taken; a task that already holds one keeps it.
+     */
+    boolean reserve(Task task) {
+        if (!counters.reserve(task, System.currentTimeMillis() + HOLD_MILLIS)) {
+            return false;
+        }
+        if (durable) {
+            String name = ((AbstractProject<?,?>) task).getFullName();
+            journaled.put(task, name);
+            journal().reserved(name);
+        }
+        return true;
+    }
+
+    void release(Task task) {
+        if (counters.release(task)) {
+            started(task);
+        }
+    }
+
+    /**
+     * The task's build started, which released its reservation.
+     */
+    void started(Task task) {
+        String name = journaled.remove(task);
+        if (name != null) {
+            journal().released(name);
+        }
+    }
+
+    /**
+     * Releases the reservations of tasks that didn't start in time and aren't
+     * pending launch. Takes the queue lock once for all the reservations still
+     * waiting in the queue, and once more only for each one that isn't.
+     */
+    void sweep() {
+        long now = System.currentTimeMillis();
+        Queue queue = Hudson.getInstance().getQueue();
+        Set<Task> queued = new HashSet<Task>();
+        for (Queue.Item item : queue.getItems()) {
+            queued.add(item.task);
+        }
+        for (ThrottleRunCounters.Reservation r : counters.getReservations()) {
+            if (now <= r.holdUntil && queued.contains(r.task)) {
+                continue;
+            }
+            if (!queue.isPending(r.task)) {
+                release(r.task);
+            }
+        }
+        if (durable && journal().isDue()) {
+            compact();
+        }
+    }
+
+    /**
+     * Takes back the reservations the journal still holds, for the projects that
+     * still exist, and compacts the journal down to those.
+     */
+    void replay() {
+        if (!durable) {
+            return;
+        }
+        long holdUntil = System.currentTimeMillis() + REPLAY_HOLD_MILLIS;
+        int n = 0;
+        for (String name : journal().read()) {
+            Item item = Hudson.getInstance().getItemByFullName(name);
+            if (item instanceof AbstractProject && counters.reserve((Task) item, holdUntil)) {
+                journaled.put((Task) item, name);
+                n++;
+            }
+        }
+        compact();
+        LOGGER.fine("Replayed " + n + " reservations");
+    }
+
+    private void compact() {
+        List<String> live = new ArrayList<String>();
+        for (ThrottleRunCounters.Reservation r : counters.getReservations()) {
+            String name = journaled.get(r.task);
+            if (name != null) {
+                live.add(name);
+            }
+        }
+        journal().rewrite(live);
+    }
+
+    private ThrottleReservationJournal journal() {
+        ThrottleReservationJournal j = journal;
+        if (j == null) {
+            synchronized (this) {
+                j = journal;
+                if (j == null) {
+                    j = new ThrottleReservationJournal(new File(Hudson.getInstance().getRootDir(), "throttle-concurrents"));
+                    journal = j;
+                }
+            }
+        }
+        return j;
+    }
+
+    @Extension
+    public static final class Sweeper extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return HOLD_MILLIS;
+        }
+
+        @Override
+        protected void doRun() {
+            get().sweep();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleReservations.class.getName());
+}
@@ -0,0 +1,495 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.Extension;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Running build counts per project, per (project, node) and per category. Category
+ * counts are in capacity units: each build counts with its weight in that category.
+ *
+ * Tasks the dispatcher let through but that haven't started yet count as well, as
+ * reservations, so that the next queue pass doesn't hand out the same slot again. A
+ * reservation only counts towards the totals: the dispatcher may offer the task
+ * several nodes before one takes it, and which one does isn't known until it starts.
+ * A reservation turns into the build's own count when it starts.
+ *
+ * Counts are bumped by run start/completion events and can be rebuilt from the
+ * executors at any time with {@link #reconcile()}, which happens at startup and
+ * periodically to heal anything the listeners missed.
+ */
+public final class ThrottleRunCounters {
+    private static final ThrottleRunCounters INSTANCE =
+        new ThrottleRunCounters(ThrottleCategoryIndex.get(), ThrottleFairShare.get(), ThrottleDecisionContext.INVALIDATE);
+
+    public static ThrottleRunCounters get() {
+        return INSTANCE;
+    }
+
+    /** Where the parent categories of a build's categories come from. */
+    private final ThrottleCategoryIndex index;
+    private final ThrottleFairShare fairShare;
+    /** Told whenever a count changes; null if nobody needs to know. */
+    private final Runnable changed;
+    private volatile State state = new State();
+    private final ConcurrentHashMap<Task, Reservation> reservations = new ConcurrentHashMap<Task, Reservation>();
+    /**
+     * Builds seen completing that may still be on their executor, finishing post
+     * production, so that {@link #reconcile()} doesn't count them again.
+     */
+    private final Set<Object> completing = new HashSet<Object>();
+
+    ThrottleRunCounters(ThrottleCategoryIndex index, ThrottleFairShare fairShare, Runnable changed) {
+        this.index = index;
+        this.fairShare = fairShare;
+        this.changed = changed;
+    }
+
+    public int running(Task task) {
+        Count c = state.projects.get(task);
+        return c == null ? 0 : c.total.get();
+    }
+
+    public int runningOnNode(Task task, String nodeName) {
+        Count c = state.projects.get(task);
+        return c == null ? 0 : c.onNode(nodeName);
+    }
+
+    public int categoryRunning(String category) {
+        Count c = state.categories.get(category);
+        return c == null ? 0 : c.total.get();
+    }
+
+    public int categoryRunningOnNode(String category, String nodeName) {
+        Count c = state.categories.get(category);
+        return c == null ? 0 : c.onNode(nodeName);
+    }
+
+    /**
+     * Running slots of the category by node name, leaving out nodes with none.
+     */
+    public Map<String, Integer> categoryRunningByNode(String category) {
+        Map<String, Integer> m = new TreeMap<String, Integer>();
+        Count c = state.categories.get(category);
+        if (c != null) {
+            for (Map.Entry<String, AtomicInteger> e : c.perNode.entrySet()) {
+                int n = e.getValue().get();
+                if (n > 0) {
+                    m.put(e.getKey(), n);
+                }
+            }
+        }
+        return m;
+    }
+
+    public int categoryWritersRunning(String category) {
+        Count c = state.categories.get(category);
+        return c == null ? 0 : c.writers.get();
+    }
+
+    public void onStarted(AbstractBuild<?,?> build) {
+        ThrottlePendingTracker.get().started(build.getProject());
+        Entry entry = started(build, build.getProject(), nodeNameOf(build));
+        ThrottleReservations.get().started(build.getProject());
+        if (entry != null) {
+            ThrottleRateLimiter.get().started(entry.directCategories());
+        }
+    }
+
+    public void onCompleted(AbstractBuild<?,?> build) {
+        Entry entry = completed(build);
+        if (entry != null) {
+            ThrottleDurations.get().completed(entry.project, System.currentTimeMillis() - entry.startedAt);
+        }
+    }
+
+    /**
+     * Counts a build of {@code project} on the given node, identified by {@code key}.
+     * Returns what got counted, or null if nothing was.
+     */
+    synchronized Entry started(Object key, AbstractProject<?,?> project, String nodeName) {
+        Entry entry = state.add(key, project, nodeName, System.currentTimeMillis());
+        if (entry != null) {
+            fairShare.started(entry.project, entry.directCategories());
+        }
+        // Only now, so the slot is never free in between.
+        Reservation r = reservations.remove(project);
+        if (r != null) {
+            state.remove(r);
+        }
+        changed();
+        return entry;
+    }
+
+    /**
+     * Holds the slots of {@code task} until it starts or the reservation is released.
+     * Returns false if the task already held one, which is left as it is.
+     */
+    synchronized boolean reserve(Task task, long holdUntil) {
+        if (!(task instanceof AbstractProject) || reservations.containsKey(task)) {
+            return false;
+        }
+        Reservation r = new Reservation(task, holdUntil);
+        reservations.put(task, r);
+        state.add(r, (AbstractProject<?,?>) task, null, System.currentTimeMillis());
+        changed();
+        return true;
+    }
+
+    synchronized boolean release(Task task) {
+        Reservation r = reservations.remove(task);
+        if (r == null) {
+            return false;
+        }
+        state.remove(r);
+        changed();
+        return true;
+    }
+
+    /**
+     * What the reservation of the task counts, or null if it holds none (or one
+     * that doesn't count anywhere).
+     */
+    Entry reservationOf(Task task) {
+        Reservation r = reservations.get(task);
+        return r == null ? null : state.builds.get(r);
+    }
+
+    Collection<Reservation> getReservations() {
+        return Collections.unmodifiableCollection(reservations.values());
+    }
+
+    synchronized Entry completed(Object key) {
+        completing.add(key);
+        Entry entry = state.remove(key);
+        changed();
+        return entry;
+    }
+
+    private void changed() {
+        if (changed != null) {
+            changed.run();
+        }
+    }
+
+    /**
+     * Estimated milliseconds until enough running builds finish to free {@code needed}
+     * slots, judging by their expected durations. Counts the builds of {@code category},
+     * or of {@code project} if the category is null, on the given node, or anywhere if
+     * that is null. Reservations haven't started, so they don't count. Returns -1 if
+     * there is no telling.
+     */
+    long estimateWait(String category, Task project, String nodeName, int needed, ThrottleDurations durations) {
+        long now = System.currentTimeMillis();
+        List<long[]> ends = new ArrayList<long[]>();
+        for (Map.Entry<Object, Entry> b : state.builds.entrySet()) {
+            Entry e = b.getValue();
+            if (b.getKey() instanceof Reservation || (nodeName != null && !e.isOn(nodeName))) {
+                continue;
+            }
+            int weight = category != null ? e.weightIn(category) : (e.project == project ? 1 : 0);
+            long expected = weight == 0 ? -1 : durations.expected(e.project);
+            if (expected >= 0) {
+                ends.add(new long[] { Math.max(0, e.startedAt + expected - now), weight });
+            }
+        }
+        Collections.sort(ends, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        int freed = 0;
+        for (long[] end : ends) {
+            freed += end[1];
+            if (freed >= needed) {
+                return end[0];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Recounts everything from what the executors are currently running.
+     */
+    public synchronized void reconcile() {
+        State fresh = new State();
+        Hudson h = Hudson.getInstance();
+        if (h == null) {
+            return;
+        }
+        Set<Object> stillCompleting = new HashSet<Object>();
+        for (Computer c : h.getComputers()) {
+            List<Executor> executors = new ArrayList<Executor>(c.getExecutors());
+            executors.addAll(c.getOneOffExecutors());
+            for (Executor e : executors) {
+                Queue.Executable exec = e.getCurrentExecutable();
+                if (exec instanceof AbstractBuild && ((AbstractBuild<?,?>) exec).isBuilding()) {
+                    AbstractBuild<?,?> build = (AbstractBuild<?,?>) exec;
+                    if (completing.contains(build)) {
+                        stillCompleting.add(build);
+                        continue;
+                    }
+                    fresh.add(build, build.getProject(), nodeNameOf(build), build.getTimeInMillis());
+                }
+            }
+        }
+        // The rest have left their executors for good.
+        completing.retainAll(stillCompleting);
+        for (Reservation r : reservations.values()) {
+            Entry old = state.builds.get(r);
+            fresh.add(r, (AbstractProject<?,?>) r.task, null,
+                      old == null ? System.currentTimeMillis() : old.startedAt);
+        }
+        state = fresh;
+        changed();
+        LOGGER.fine("Reconciled running counts: " + fresh.builds.size() + " builds");
+    }
+
+    private static String nodeNameOf(AbstractBuild<?,?> build) {
+        String n = build.getBuiltOnStr();
+        return n == null ? "" : n;
+    }
+
+    private final class State {
+        final ConcurrentHashMap<Task, Count> projects = new ConcurrentHashMap<Task, Count>();
+        final ConcurrentHashMap<String, Count> categories = new ConcurrentHashMap<String, Count>();
+        /** What was counted for each build, so completion undoes exactly that. */
+        final Map<Object, Entry> builds = new ConcurrentHashMap<Object, Entry>();
+
+        /**
+         * Returns what got counted, or null if the build was already counted or
+         * isn't counted at all.
+         */
+        Entry add(Object key, AbstractProject<?,?> project, String nodeName, long startedAt) {
+            if (builds.containsKey(key)) {
+                return null;
+            }
+            ThrottleJobProperty tjp = project.getProperty(ThrottleJobProperty.class);
+            if (project instanceof MatrixConfiguration) {
+                // Count configurations as their parent when the parent throttles them.
+                MatrixProject parent = ((MatrixConfiguration) project).getParent();
+                ThrottleJobProperty parentTjp = parent.getProperty(ThrottleJobProperty.class);
+                if (parentTjp != null && parentTjp.getThrottleEnabled() && parentTjp.getPolicy().matrixConfigurations) {
+                    project = parent;
+                    tjp = parentTjp;
+                }
+            }
+            else if (project instanceof MatrixProject && tjp != null && tjp.getThrottleEnabled()
+                     && tjp.getPolicy().matrixConfigurations) {
+                // The flyweight parent build; its configurations are what gets counted.
+                return null;
+            }
+            Entry entry = new Entry(project, nodeName, startedAt);
+            if (tjp != null && tjp.getThrottleEnabled() && tjp.getCategoryConfigurations() != null) {
+                for (ThrottleJobProperty.CategoryConfiguration catCfg : tjp.getCategoryConfigurations()) {
+                    String catNm = catCfg.getCategoryName();
+                    if (catNm != null && !catNm.equals("") && !entry.categories.contains(catNm)) {
+                        entry.categories.add(catNm);
+                        entry.writer.add("writer".equals(catCfg.getCategoryType()));
+                        entry.weights.add(catCfg.getWeight());
+                    }
+                }
+                // Builds count against the whole chain of parent categories too, once each,
+                // with the heaviest weight of the direct categories leading there.
+                entry.direct = entry.categories.size();
+                for (int i = 0; i < entry.direct; i++) {
+                    for (String ancestor : index.getAncestors(entry.categories.get(i))) {
+                        int a = entry.categories.indexOf(ancestor);
+                        if (a < 0) {
+                            entry.categories.add(ancestor);
+                            entry.writer.add(Boolean.FALSE);
+                            entry.weights.add(entry.weights.get(i));
+                        }
+                        else if (a >= entry.direct && entry.weights.get(i) > entry.weights.get(a)) {
+                            entry.weights.set(a, entry.weights.get(i));
+                        }
+                    }
+                }
+            }
+            builds.put(key, entry);
+            apply(entry, 1);
+            return entry;
+        }
+
+        Entry remove(Object key) {
+            Entry entry = builds.remove(key);
+            if (entry != null) {
+                apply(entry, -1);
+            }
+            return entry;
+        }
+
+        private void apply(Entry entry, int delta) {
+            countFor(projects, entry.project).add(entry.nodeName, delta, 0);
+            for (int i = 0; i < entry.categories.size(); i++) {
+                countFor(categories, entry.categories.get(i)).add(entry.nodeName,
+                                                                  delta * entry.weights.get(i),
+                                                                  entry.writer.get(i) ? delta : 0);
+            }
+        }
+
+        private static <K> Count countFor(ConcurrentHashMap<K, Count> map, K key) {
+            Count c = map.get(key);
+            if (c == null) {
+                c = new Count();
+                Count prev = map.putIfAbsent(key, c);
+                if (prev != null) {
+                    c = prev;
+                }
+            }
+            return c;
+        }
+    }
+
+    static final class Entry {
+        final AbstractProject<?,?> project;
+        /** Null for a reservation. */
+        final String nodeName;
+        final List<String> categories = new ArrayList<String>(1);
+        final List<Boolean> writer = new ArrayList<Boolean>(1);
+        final List<Integer> weights = new ArrayList<Integer>(1);
+        /** When the build started, or the reservation was taken. */
+        final long startedAt;
+        /** How many of {@link #categories} the project is in directly; the rest are their parents. */
+        int direct;
+
+        Entry(AbstractProject<?,?> project, String nodeName, long startedAt) {
+            this.project = project;
+            this.nodeName = nodeName;
+            this.startedAt = startedAt;
+        }
+
+        boolean isOn(String nodeName) {
+            return this.nodeName != null && this.nodeName.equals(nodeName);
+        }
+
+        /** Slots counted in the category; 0 if none. */
+        int weightIn(String category) {
+            int i = categories.indexOf(category);
+            return i < 0 ? 0 : weights.get(i);
+        }
+
+        /** The categories the project is in directly. */
+        List<String> directCategories() {
+            return categories.subList(0, direct);
+        }
+
+        /** 1 if counted as a writer of the category, 0 otherwise. */
+        int writersIn(String category) {
+            int i = categories.indexOf(category);
+            return i >= 0 && writer.get(i) ? 1 : 0;
+        }
+    }
+
+    /**
+     * Slots held for a task that was let through but hasn't started yet. Compared by
+     * identity, so a task's old and new reservations never clash.
+     */
+    static final class Reservation {
+        final Task task;
+        final long holdUntil;
+
+        Reservation(Task task, long holdUntil) {
+            this.task = task;
+            this.holdUntil = holdUntil;
+        }
+    }
+
+    private static final class Count {
+        final AtomicInteger total = new AtomicInteger();
+        final AtomicInteger writers = new AtomicInteger();
+        final ConcurrentHashMap<String, AtomicInteger> perNode = new ConcurrentHashMap<String, AtomicInteger>();
+
+        int onNode(String nodeName) {
+            AtomicInteger i = perNode.get(nodeName);
+            return i == null ? 0 : i.get();
+        }
+
+        void add(String nodeName, int delta, int writersDelta) {
+            total.addAndGet(delta);
+            if (writersDelta != 0) {
+                writers.addAndGet(writersDelta);
+            }
+            if (nodeName == null) {
+                return;
+            }
+            AtomicInteger i = perNode.get(nodeName);
+            if (i == null) {
+                i = new AtomicInteger();
+                AtomicInteger prev = perNode.putIfAbsent(nodeName, i);
+                if (prev != null) {
+                    i = prev;
+                }
+            }
+            i.addAndGet(delta);
+        }
+    }
+
+    @Extension
+    public static final class RunListenerImpl extends RunListener<AbstractBuild<?,?>> {
+        @SuppressWarnings("unchecked")
+        public RunListenerImpl() {
+            super((Class) AbstractBuild.class);
+        }
+
+        @Override
+        public void onStarted(AbstractBuild<?,?> build, TaskListener listener) {
+            get().onStarted(build);
+            ThrottleTraceRecorder.get().started(build);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild<?,?> build, TaskListener listener) {
+            get().onCompleted(build);
+            ThrottleTraceRecorder.get().completed(build);
+        }
+    }
+
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            ThrottleReservations.get().replay();
+            get().reconcile();
+        }
+    }
+
+    @Extension
+    public static final class Reconciler extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            get().reconcile();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleRunCounters.class.getName());
+}
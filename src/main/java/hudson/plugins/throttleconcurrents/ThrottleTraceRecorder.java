@@ -0,0 +1,163 @@
+package hudson.plugins.throttleconcurrents;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Executor;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue.Task;
+import hudson.model.queue.WorkUnit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Records queue and build events to throttle-concurrents/trace.jsonl under the Hudson
+ * root directory, one JSON object per line, for replaying against other throttle
+ * configurations offline (see the simulator in benchmarks/). Off unless the
+ * {@code hudson.plugins.throttleconcurrents.ThrottleTraceRecorder.enabled} system
+ * property is true.
+ *
+ * <pre>
+ * {"t":..., "event":"node", "node":"linux-1", "executors":4, "labels":"linux large"}
+ * {"t":..., "event":"enqueue", "job":"folder/job", "nodes":["linux-1", ...]}
+ * {"t":..., "event":"start", "job":"folder/job", "node":"linux-1"}
+ * {"t":..., "event":"finish", "job":"folder/job", "node":"linux-1"}
+ * </pre>
+ *
+ * {@code t} is in milliseconds since the epoch; {@code nodes} lists the nodes the
+ * job's label allows, and is left out when it may run anywhere. A node is written
+ * before the first event that names it, and again whenever its executors or labels change.
+ *
+ * Hudson 1.399 tells plugins nothing about items entering the queue, so the enqueue
+ * of a build is written just before its start, with the time its queue item was
+ * created. Items that leave the queue without starting aren't recorded.
+ */
+public final class ThrottleTraceRecorder {
+    static final boolean ENABLED = Boolean.getBoolean(ThrottleTraceRecorder.class.getName() + ".enabled");
+
+    private static final ThrottleTraceRecorder INSTANCE = new ThrottleTraceRecorder();
+
+    public static ThrottleTraceRecorder get() {
+        return INSTANCE;
+    }
+
+    /** Executors and labels last written for each node. */
+    private final ConcurrentHashMap<String, String> nodes = new ConcurrentHashMap<String, String>();
+    private Writer out;
+
+    ThrottleTraceRecorder() {
+    }
+
+    /**
+     * Writes the enqueue and the start of the build. Called on the executor thread
+     * that runs it, which still knows the queue item it came from.
+     */
+    void started(AbstractBuild<?,?> build) {
+        if (!ENABLED) {
+            return;
+        }
+        Executor executor = Executor.currentExecutor();
+        WorkUnit unit = executor == null ? null : executor.getCurrentWorkUnit();
+        if (unit != null) {
+            // Otherwise the simulator counts it as not having waited.
+            queued(build.getProject(), unit.context.item.getInQueueSince());
+        }
+        Node node = build.getBuiltOn();
+        if (node != null) {
+            node(node);
+        }
+        write(event(System.currentTimeMillis(), "start", nameOf(build.getProject()), build));
+    }
+
+    private void queued(Task task, long since) {
+        JSONObject e = event(since, "enqueue", nameOf(task));
+        Label label = task.getAssignedLabel();
+        if (label != null) {
+            JSONArray names = new JSONArray();
+            for (Node node : label.getNodes()) {
+                node(node);
+                names.add(node.getNodeName());
+            }
+            e.put("nodes", names);
+        }
+        write(e);
+    }
+
+    void completed(AbstractBuild<?,?> build) {
+        if (!ENABLED) {
+            return;
+        }
+        write(event(System.currentTimeMillis(), "finish", nameOf(build.getProject()), build));
+    }
+
+    private void node(Node node) {
+        String def = node.getNumExecutors() + "\n" + node.getLabelString();
+        if (def.equals(nodes.put(node.getNodeName(), def))) {
+            return;
+        }
+        JSONObject e = new JSONObject();
+        e.put("t", System.currentTimeMillis());
+        e.put("event", "node");
+        e.put("node", node.getNodeName());
+        e.put("executors", node.getNumExecutors());
+        e.put("labels", node.getLabelString());
+        write(e);
+    }
+
+    private static JSONObject event(long t, String event, String job) {
+        JSONObject e = new JSONObject();
+        e.put("t", t);
+        e.put("event", event);
+        e.put("job", job);
+        return e;
+    }
+
+    private static JSONObject event(long t, String event, String job, AbstractBuild<?,?> build) {
+        JSONObject e = event(t, event, job);
+        String n = build.getBuiltOnStr();
+        e.put("node", n == null ? "" : n);
+        return e;
+    }
+
+    private static String nameOf(Task task) {
+        if (task instanceof Item) {
+            return ((Item) task).getFullName();
+        }
+        return task.getDisplayName();
+    }
+
+    private synchronized void write(JSONObject event) {
+        File file = new File(Hudson.getInstance().getRootDir(), "throttle-concurrents/trace.jsonl");
+        try {
+            if (out == null) {
+                file.getParentFile().mkdirs();
+                out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            }
+            out.write(event.toString() + "\n");
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write to " + file, e);
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException x) {
+                // ignore
+            }
+            out = null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ThrottleTraceRecorder.class.getName());
+}
@@ -0,0 +1,112 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+public class ThrottleConfigJsonTest {
+
+    @Test
+    public void acceptsNestedCategories() {
+        ThrottleConfigJson.validate(Arrays.asList(category("database", null),
+                                                  category("mysql", "database"),
+                                                  category("postgres", "database")));
+    }
+
+    @Test
+    public void rejectsCategoryWithoutName() {
+        assertRejected("has no categoryName", category(" ", null));
+    }
+
+    @Test
+    public void rejectsDuplicateCategory() {
+        assertRejected("defined more than once", category("a", null), category("a", null));
+    }
+
+    @Test
+    public void rejectsUnknownParent() {
+        assertRejected("unknown parent missing", category("a", "missing"));
+    }
+
+    @Test
+    public void rejectsCategoryNestedInItself() {
+        assertRejected("nested in itself", category("a", "a"));
+    }
+
+    @Test
+    public void rejectsParentCycle() {
+        assertRejected("nested in itself", category("a", "b"), category("b", "c"), category("c", "a"));
+    }
+
+    @Test
+    public void rejectsAdaptiveMaximumBelowMinimum() {
+        ThrottleJobProperty.ThrottleCategory c =
+            new ThrottleJobProperty.ThrottleCategory("a", 1, 0, null, false, null, null, null, null, null, null,
+                                                     new ThrottleJobProperty.AdaptiveLimit(4, 2, null, null, null));
+        assertRejected("adaptive maximum below its minimum", c);
+    }
+
+    @Test
+    public void acceptsAdaptiveLimitWithoutMaximum() {
+        ThrottleJobProperty.ThrottleCategory c =
+            new ThrottleJobProperty.ThrottleCategory("a", 1, 0, null, false, null, null, null, null, null, null,
+                                                     new ThrottleJobProperty.AdaptiveLimit(4, 0, null, null, null));
+        ThrottleConfigJson.validate(Arrays.asList(c));
+    }
+
+    /**
+     * Applying an export compares what is read back with what is configured; nothing
+     * may differ, or every category would be saved again.
+     */
+    @Test
+    public void exportedCategoriesReadBackUnchanged() {
+        List<ThrottleJobProperty.NodeLimit> nodeLimits = new ArrayList<ThrottleJobProperty.NodeLimit>();
+        nodeLimits.add(new ThrottleJobProperty.NodeLimit("linux && big", 4, true));
+        nodeLimits.add(new ThrottleJobProperty.NodeLimit(null, 1, false));
+        List<ThrottleJobProperty.ThrottleCategory> categories = Arrays.asList(
+            category("database", null),
+            new ThrottleJobProperty.ThrottleCategory("mysql", 2, 10, "roundRobin", true, 300, nodeLimits,
+                                                     5, 60, 2, "database",
+                                                     new ThrottleJobProperty.AdaptiveLimit(1, 4, 512, 1024, 2000)));
+        JSONArray exported = ThrottleConfigJson.toJson(categories);
+
+        List<ThrottleJobProperty.ThrottleCategory> read = new ArrayList<ThrottleJobProperty.ThrottleCategory>();
+        for (int i = 0; i < exported.size(); i++) {
+            read.add(ThrottleConfigJson.toCategory(JSONObject.fromObject(exported.getJSONObject(i).toString())));
+        }
+        assertEquals(exported, ThrottleConfigJson.toJson(read));
+    }
+
+    @Test
+    public void exportedPropertyReadsBackUnchanged() {
+        List<ThrottleJobProperty.CategoryConfiguration> cfgs = new ArrayList<ThrottleJobProperty.CategoryConfiguration>();
+        cfgs.add(new ThrottleJobProperty.CategoryConfiguration("mysql", "writer", 2));
+        cfgs.add(new ThrottleJobProperty.CategoryConfiguration("postgres", "normal"));
+        ThrottleJobProperty tjp = new ThrottleJobProperty(1, 3, cfgs, true, "category", true);
+        JSONObject exported = ThrottleConfigJson.toJson(tjp);
+
+        ThrottleJobProperty read = ThrottleConfigJson.toProperty(JSONObject.fromObject(exported.toString()));
+        assertEquals(exported, ThrottleConfigJson.toJson(read));
+    }
+
+    private static ThrottleJobProperty.ThrottleCategory category(String name, String parent) {
+        return new ThrottleJobProperty.ThrottleCategory(name, 1, 2, null, false, null, null, null, null, null, parent, null);
+    }
+
+    private static void assertRejected(String message, ThrottleJobProperty.ThrottleCategory... categories) {
+        try {
+            ThrottleConfigJson.validate(Arrays.asList(categories));
+            fail("Expected the categories to be rejected: " + message);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
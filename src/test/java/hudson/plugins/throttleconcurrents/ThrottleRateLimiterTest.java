@@ -0,0 +1,58 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ThrottleRateLimiterTest {
+    /** Long enough that the time the test itself takes doesn't matter. */
+    private static final long EMISSION = 3600 * 1000000000L;
+    private static final long SLACK = 60 * 1000000000L;
+
+    @Test
+    public void admitsWholeBurstThenWaitsOneInterval() {
+        ThrottleRateLimiter limiter = new ThrottleRateLimiter();
+        long tolerance = 2 * EMISSION; // a burst of 3
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("start " + (i + 1) + " of the burst", 0, limiter.delayNanos("a", tolerance));
+            limiter.started("a", EMISSION);
+        }
+        assertAboutOneInterval(limiter.delayNanos("a", tolerance));
+    }
+
+    @Test
+    public void withoutBurstEveryStartWaitsOneInterval() {
+        ThrottleRateLimiter limiter = new ThrottleRateLimiter();
+
+        assertEquals(0, limiter.delayNanos("a", 0));
+        limiter.started("a", EMISSION);
+        assertAboutOneInterval(limiter.delayNanos("a", 0));
+    }
+
+    @Test
+    public void startsBeyondTheBurstPushTheNextOneFurther() {
+        ThrottleRateLimiter limiter = new ThrottleRateLimiter();
+        long tolerance = EMISSION; // a burst of 2
+
+        for (int i = 0; i < 4; i++) {
+            limiter.started("a", EMISSION);
+        }
+        long delay = limiter.delayNanos("a", tolerance);
+        assertTrue("delay " + delay, delay > 3 * EMISSION - SLACK && delay <= 3 * EMISSION);
+    }
+
+    @Test
+    public void categoriesHaveTheirOwnBuckets() {
+        ThrottleRateLimiter limiter = new ThrottleRateLimiter();
+
+        limiter.started("a", EMISSION);
+        assertAboutOneInterval(limiter.delayNanos("a", 0));
+        assertEquals(0, limiter.delayNanos("b", 0));
+    }
+
+    private static void assertAboutOneInterval(long delay) {
+        assertTrue("delay " + delay, delay > EMISSION - SLACK && delay <= EMISSION);
+    }
+}
@@ -0,0 +1,122 @@
+package hudson.plugins.throttleconcurrents;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThrottleReservationJournalTest {
+    private File dir;
+    private File file;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdirs();
+        file = new File(dir, "reservations.log");
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void readsReservationsStillHeld() throws IOException {
+        write("+\ta\n+\tb\n-\ta\n+\tc\n");
+        assertEquals(Arrays.asList("b", "c"), read(new ThrottleReservationJournal(dir)));
+    }
+
+    @Test
+    public void ignoresTornReservation() throws IOException {
+        write("+\ta\n+\tb\n-\ta\n+\tc");
+        assertEquals(Arrays.asList("b"), read(new ThrottleReservationJournal(dir)));
+    }
+
+    @Test
+    public void ignoresTornRelease() throws IOException {
+        write("+\ta\n+\tb\n-\tb");
+        assertEquals(Arrays.asList("a", "b"), read(new ThrottleReservationJournal(dir)));
+    }
+
+    @Test
+    public void ignoresRecordsOfAnotherFormat() throws IOException {
+        write("+\ta\tnode\n+\tb\n?\tb\n");
+        assertEquals(Arrays.asList("b"), read(new ThrottleReservationJournal(dir)));
+    }
+
+    @Test
+    public void appendsAfterTornLine() throws IOException {
+        write("+\ta\n+\tb\n-\ta\n+\tc");
+        ThrottleReservationJournal journal = new ThrottleReservationJournal(dir);
+        journal.reserved("d");
+        assertEquals(Arrays.asList("b", "d"), read(journal));
+        assertEquals("+\ta\n+\tb\n-\ta\n+\td\n", contents());
+    }
+
+    @Test
+    public void rewriteDropsTornLine() throws IOException {
+        write("+\ta\n+\tb\n-\ta\n+\tc");
+        ThrottleReservationJournal journal = new ThrottleReservationJournal(dir);
+        journal.rewrite(journal.read());
+        assertEquals("+\tb\n", contents());
+        assertEquals(Arrays.asList("b"), read(journal));
+    }
+
+    @Test
+    public void rewriteKeepsLaterRecords() throws IOException {
+        ThrottleReservationJournal journal = new ThrottleReservationJournal(dir);
+        journal.reserved("a");
+        journal.reserved("b");
+        journal.released("a");
+        journal.rewrite(journal.read());
+        journal.reserved("c");
+        assertEquals(Arrays.asList("b", "c"), read(journal));
+        assertEquals("+\tb\n+\tc\n", contents());
+    }
+
+    private static List<String> read(ThrottleReservationJournal journal) {
+        return new ArrayList<String>(journal.read());
+    }
+
+    private void write(String s) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(s.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private String contents() throws IOException {
+        byte[] b = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < b.length) {
+                n += in.read(b, n, b.length - n);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(b, "UTF-8");
+    }
+}